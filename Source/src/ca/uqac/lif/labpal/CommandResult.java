@@ -0,0 +1,127 @@
+/*
+  LabPal, a versatile environment for running experiments on a computer
+  Copyright (C) 2015-2017 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.labpal;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The outcome of a command executed by a {@link CommandRunner}
+ */
+public class CommandResult
+{
+	/**
+	 * The exit code of the command
+	 */
+	protected final int m_exitCode;
+
+	/**
+	 * The bytes the command sent to stdout
+	 */
+	protected final byte[] m_stdout;
+
+	/**
+	 * The bytes the command sent to stderr
+	 */
+	protected final byte[] m_stderr;
+
+	/**
+	 * The time elapsed between the start and the end of the command, in
+	 * nanoseconds
+	 */
+	protected final long m_wallTime;
+
+	/**
+	 * The CPU time used by the command, in nanoseconds, or -1 if the
+	 * system did not report it
+	 */
+	protected final long m_cpuTime;
+
+	/**
+	 * Creates a new result
+	 * @param exit_code The exit code of the command
+	 * @param stdout The bytes the command sent to stdout
+	 * @param stderr The bytes the command sent to stderr
+	 * @param wall_time The time elapsed, in nanoseconds
+	 * @param cpu_time The CPU time used, in nanoseconds, or -1
+	 */
+	public CommandResult(int exit_code, byte[] stdout, byte[] stderr, long wall_time, long cpu_time)
+	{
+		super();
+		m_exitCode = exit_code;
+		m_stdout = stdout;
+		m_stderr = stderr;
+		m_wallTime = wall_time;
+		m_cpuTime = cpu_time;
+	}
+
+	/**
+	 * Gets the exit code of the command. Generally 0 indicates that
+	 * everything was OK; a non-zero value indicates an error.
+	 * @return The exit code
+	 */
+	public int getExitCode()
+	{
+		return m_exitCode;
+	}
+
+	/**
+	 * Gets the contents of stdout sent by the command
+	 * @return The contents; empty if stdout was sent to a stream
+	 */
+	public byte[] getStdout()
+	{
+		return m_stdout;
+	}
+
+	/**
+	 * Gets the contents of stdout sent by the command as a string
+	 * @return The contents, decoded as UTF-8
+	 */
+	public String getStdoutString()
+	{
+		return new String(m_stdout, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets the contents of stderr sent by the command as a string
+	 * @return The contents, decoded as UTF-8
+	 */
+	public String getStderrString()
+	{
+		return new String(m_stderr, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets the time elapsed between the start and the end of the command
+	 * @return The time, in nanoseconds
+	 */
+	public long getWallTime()
+	{
+		return m_wallTime;
+	}
+
+	/**
+	 * Gets the CPU time used by the command
+	 * @return The time, in nanoseconds, or -1 if the system did not
+	 * report it
+	 */
+	public long getCpuTime()
+	{
+		return m_cpuTime;
+	}
+}
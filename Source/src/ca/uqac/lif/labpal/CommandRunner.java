@@ -20,12 +20,23 @@ package ca.uqac.lif.labpal;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 /**
  * Facilitates the execution of an external command and the collection of
- * its output
+ * its output. The output of the command is read by two background threads,
+ * which are virtual threads on JDKs that support them.
  */
 public class CommandRunner extends Thread
 {
@@ -36,6 +47,27 @@ public class CommandRunner extends Thread
 	protected StreamGobbler m_stderrGobbler;
 	protected int m_errorCode = 0;
 	
+	/**
+	 * The stream stdout is copied to, or {@code null} if it is captured
+	 */
+	protected OutputStream m_stdoutSink = null;
+	
+	/**
+	 * The process running the command, once it has been started
+	 */
+	protected volatile Process m_process = null;
+	
+	/**
+	 * The CPU time used by the command, in nanoseconds, as last reported by
+	 * the system, or -1
+	 */
+	protected volatile long m_cpuTime = -1;
+	
+	/**
+	 * The result of the command, completed when it ends
+	 */
+	protected final CompletableFuture<CommandResult> m_result = new CompletableFuture<CommandResult>();
+	
 	/**
 	 * Creates a CommandRunner to run a command.
 	 * @param command The command to run
@@ -58,7 +90,7 @@ public class CommandRunner extends Thread
 	 * Creates a CommandRunner to run a command.
 	 * @param command The command to run
 	 * @param stdin If not set to null, this string will be sent to the stdin
-	 * of the command being run
+	 * of the command being run, encoded as UTF-8
 	 */
 	public CommandRunner(String[] command, String stdin)
 	{
@@ -77,20 +109,74 @@ public class CommandRunner extends Thread
 	}
 	
 	/**
-	 * Constantly reads an input stream and captures its content.
+	 * Sends the stdout of the command to a stream instead of capturing it.
+	 * The stream is flushed, but not closed, when the command ends;
+	 * {@link #getBytes()} then returns nothing. This must be called before
+	 * the command is run.
+	 * @param out The stream
+	 */
+	public void setStdout(OutputStream out)
+	{
+		m_stdoutSink = out;
+	}
+	
+	/**
+	 * Records the CPU time the process has used so far. The process closes
+	 * its stdout when it exits; sampling at that moment gives the CPU time
+	 * of the whole command, if the system still reports it.
+	 */
+	protected void sampleCpuTime()
+	{
+		Process process = m_process;
+		if (process == null)
+		{
+			return;
+		}
+		Optional<Duration> cpu = process.info().totalCpuDuration();
+		if (cpu.isPresent())
+		{
+			m_cpuTime = cpu.get().toNanos();
+		}
+	}
+	
+	/**
+	 * Constantly reads an input stream and captures its content, or copies
+	 * it to another stream.
 	 * Inspired from <a href="http://stackoverflow.com/questions/14165517/processbuilder-forwarding-stdout-and-stderr-of-started-processes-without-blocki">Stack Overflow</a>
 	 */
-	protected class StreamGobbler extends Thread
+	protected class StreamGobbler implements Runnable
 	{
 		InputStream m_is;
-		Vector<Byte> m_contents;
 		String m_name;
-		private StreamGobbler(InputStream is, String name)
+		
+		/**
+		 * The stream the contents are copied to, or {@code null} if they are
+		 * captured
+		 */
+		OutputStream m_sink;
+		
+		/**
+		 * The captured contents; only the first {@link #m_size} bytes are
+		 * used
+		 */
+		byte[] m_contents = new byte[8192];
+		
+		/**
+		 * The number of bytes captured
+		 */
+		int m_size = 0;
+		
+		/**
+		 * The thread reading the stream
+		 */
+		Thread m_thread = null;
+		
+		private StreamGobbler(InputStream is, String name, OutputStream sink)
 		{
 			super();
-			m_contents = new Vector<Byte>();
 			this.m_is = is;
 			m_name = name;
+			m_sink = sink;
 		}
 		
 		@Override
@@ -98,18 +184,45 @@ public class CommandRunner extends Thread
 		{
 			try
 			{
-				byte[] buffer = new byte[8192];
-				int len = -1;
-				while (!m_stop && (len = m_is.read(buffer)) > 0)
+				if (m_sink != null)
 				{
-					synchronized (this)
+					byte[] buffer = new byte[8192];
+					int len = -1;
+					while (!m_stop && (len = m_is.read(buffer)) >= 0)
 					{
-						for (int i = 0; i < len; i++)
+						m_sink.write(buffer, 0, len);
+					}
+					m_sink.flush();
+				}
+				else
+				{
+					int len = -1;
+					while (!m_stop)
+					{
+						synchronized (this)
+						{
+							if (m_size == m_contents.length)
+							{
+								m_contents = Arrays.copyOf(m_contents, m_contents.length * 2);
+							}
+						}
+						// Read directly into the buffer; the bytes are only counted once
+						// they have been read
+						len = m_is.read(m_contents, m_size, m_contents.length - m_size);
+						if (len < 0)
+						{
+							break;
+						}
+						synchronized (this)
 						{
-							m_contents.add(buffer[i]);
+							m_size += len;
 						}
 					}
 				}
+				if ("IN".equals(m_name))
+				{
+					sampleCpuTime();
+				}
 				m_is.close();
 			}
 			catch (IOException ioe)
@@ -118,45 +231,60 @@ public class CommandRunner extends Thread
 			}
 		}
 		
+		/**
+		 * Starts reading the stream in the background
+		 */
+		public void start()
+		{
+			m_thread = ThreadHelper.start(this, "CommandRunner " + m_name);
+		}
+		
+		/**
+		 * Waits until the whole stream has been read
+		 * @throws InterruptedException If the wait is interrupted
+		 */
+		public void join() throws InterruptedException
+		{
+			m_thread.join();
+		}
+		
 		/**
 		 * Returns the contents captured by the gobbler as an array of bytes
 		 * @return The contents
 		 */
 		public synchronized byte[] getBytes()
 		{
-			int size = m_contents.size();
-			byte[] out = new byte[size];
-			int i = 0;
-			for (byte b : m_contents)
-			{
-				out[i++] = b;
-			}
-			return out;
+			return Arrays.copyOf(m_contents, m_size);
+		}
+		
+		/**
+		 * Returns the contents captured by the gobbler as a string
+		 * @return The contents, decoded as UTF-8
+		 */
+		public synchronized String getString()
+		{
+			return new String(m_contents, 0, m_size, StandardCharsets.UTF_8);
 		}
 	}
 	
 	public static byte[] runAndGet(String[] command, String inputs)
 	{
 		CommandRunner runner = new CommandRunner(command, inputs);
-		runner.start();
-		// Wait until the command is done
-		while (runner.isAlive())
+		CompletableFuture<CommandResult> future = runner.execute(0, TimeUnit.MILLISECONDS);
+		try
 		{
-			// Wait 0.1 s and check again
-			try
-			{
-				Thread.sleep(100);
-			}
-			catch (InterruptedException e)
-			{
-				// This happens if the user cancels the command manually
-				runner.stopCommand();
-				runner.interrupt();
-				return new byte[0];
-			}
+			return future.get().getStdout();
+		}
+		catch (InterruptedException e)
+		{
+			// This happens if the user cancels the command manually
+			future.cancel(true);
+			return new byte[0];
+		}
+		catch (ExecutionException e)
+		{
+			return new byte[0];
 		}
-		byte[] out = runner.getBytes();
-		return out;
 	}
 	
 	public static byte[] runAndGet(String command, String inputs)
@@ -166,48 +294,134 @@ public class CommandRunner extends Thread
 		return runAndGet(s_command, inputs);
 	}
 	
+	/**
+	 * Starts the command in the background, on a virtual thread if the JDK
+	 * supports them (see {@link ThreadHelper}). The future completes when the
+	 * command has ended and all its output has been read. Cancelling the
+	 * future, or letting it time out, kills the command and all the
+	 * processes it has started. A runner executes its command only once.
+	 * @param timeout The maximum time the command may take, or 0 for no
+	 * limit
+	 * @param unit The unit of the timeout
+	 * @return The result of the command. The future completes exceptionally
+	 * with a {@link TimeoutException} if the command takes too long, and
+	 * with an {@link IOException} if it cannot be run.
+	 */
+	public CompletableFuture<CommandResult> execute(long timeout, TimeUnit unit)
+	{
+		if (timeout > 0)
+		{
+			m_result.orTimeout(timeout, unit);
+		}
+		m_result.whenComplete(new BiConsumer<CommandResult,Throwable>()
+		{
+			@Override
+			public void accept(CommandResult result, Throwable t)
+			{
+				if (t != null)
+				{
+					// Cancelled or timed out
+					stopCommand();
+					destroyTree();
+				}
+			}
+		});
+		ThreadHelper.start(this, "CommandRunner");
+		return m_result;
+	}
+	
+	/**
+	 * Runs the command and waits until it ends. The result can then be
+	 * read with {@link #getErrorCode()} and {@link #getString()}, or from
+	 * the future returned by {@link #getResult()}.
+	 */
 	@Override
 	public void run()
 	{
 		ProcessBuilder builder = new ProcessBuilder(m_command);
-		Process process = null;
+		long start = System.nanoTime();
 		try
 		{
-			process = builder.start();
-			m_stderrGobbler = new StreamGobbler(process.getErrorStream(), "ERR");
-			m_stdoutGobbler = new StreamGobbler(process.getInputStream(), "IN");
+			m_process = builder.start();
+			if (m_stop)
+			{
+				// Cancelled before the process was started
+				destroyTree();
+			}
+			m_stderrGobbler = new StreamGobbler(m_process.getErrorStream(), "ERR", null);
+			m_stdoutGobbler = new StreamGobbler(m_process.getInputStream(), "IN", m_stdoutSink);
+			// Start gobblers before sending the input, so that a command
+			// writing a lot of output cannot block while we write its input
+			m_stderrGobbler.start();
+			m_stdoutGobbler.start();
 			// Send data into stdin of process
+			OutputStream process_stdin = m_process.getOutputStream();
 			if (m_stdin != null)
 			{
-				OutputStream process_stdin = process.getOutputStream();
-				byte[] stdin_bytes = m_stdin.getBytes();
+				byte[] stdin_bytes = m_stdin.getBytes(StandardCharsets.UTF_8);
 				process_stdin.write(stdin_bytes, 0, stdin_bytes.length);
 				process_stdin.flush();
-				process_stdin.close();
-				//System.out.println("Writing " + stdin_bytes.length + " bytes");
 			}
-			// Start gobblers
-			m_stderrGobbler.start();
-			m_stdoutGobbler.start();
-			m_errorCode = process.waitFor();
-			do
-			{
-				// Wait for both gobblers to finish
-			} while (!m_stop && (m_stderrGobbler.isAlive() || m_stdoutGobbler.isAlive()));
+			process_stdin.close();
+			m_errorCode = m_process.waitFor();
+			// Wait for both gobblers to reach the end of their stream
+			m_stderrGobbler.join();
+			m_stdoutGobbler.join();
+			m_result.complete(new CommandResult(m_errorCode, m_stdoutGobbler.getBytes(), m_stderrGobbler.getBytes(), System.nanoTime() - start, m_cpuTime));
 		}
 		catch (IOException e)
 		{
 			m_errorCode = -1;
+			if (m_stop)
+			{
+				// The input could not be written because the command was killed
+				destroyTree();
+			}
+			m_result.completeExceptionally(e);
 		}
 		catch (InterruptedException e)
 		{
 			// Destroy the running command
-			if (process != null)
-			{
-				process.destroy();
-			}
+			destroyTree();
+			m_result.cancel(false);
 		}
-		//System.err.println(new String(error_gobbler.getBytes()));
+	}
+	
+	/**
+	 * Kills the process running the command, and all the processes it has
+	 * started
+	 */
+	protected void destroyTree()
+	{
+		Process process = m_process;
+		if (process == null)
+		{
+			return;
+		}
+		// List the descendants first: once their parent is dead, they are no
+		// longer its descendants
+		List<ProcessHandle> descendants = new ArrayList<ProcessHandle>();
+		Iterator<ProcessHandle> it = process.descendants().iterator();
+		while (it.hasNext())
+		{
+			descendants.add(it.next());
+		}
+		process.destroyForcibly();
+		for (ProcessHandle h : descendants)
+		{
+			h.destroyForcibly();
+		}
+	}
+	
+	/**
+	 * Gets the future result of the command. It completes when the command
+	 * has been run, either by {@link #run()} or by
+	 * {@link #execute(long, TimeUnit)}.
+	 * @return The future result
+	 */
+	public CompletableFuture<CommandResult> getResult()
+	{
+		return m_result;
 	}
 	
 	/**
@@ -216,11 +430,16 @@ public class CommandRunner extends Thread
 	 */
 	synchronized public byte[] getBytes()
 	{
+		if (m_stdoutGobbler == null)
+		{
+			return new byte[0];
+		}
 		return m_stdoutGobbler.getBytes();
 	}
 	
 	/**
-	 * Gets the contents of stdout sent by the command as a string
+	 * Gets the contents of stdout sent by the command as a string,
+	 * decoded as UTF-8
 	 * @return The contents of stdout
 	 */
 	synchronized public String getString()
@@ -229,12 +448,7 @@ public class CommandRunner extends Thread
 		{
 			return "";
 		}
-		byte[] out = m_stdoutGobbler.getBytes();
-		if (out == null || out.length == 0)
-		{
-			return "";
-		}
-		return new String(out);
+		return m_stdoutGobbler.getString();
 	}
 	
 	/**
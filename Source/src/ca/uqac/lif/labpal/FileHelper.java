@@ -17,21 +17,26 @@
  */
 package ca.uqac.lif.labpal;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
@@ -51,42 +56,144 @@ public class FileHelper
 	public static final transient String CRLF = System.getProperty("line.separator");
 
 	/**
-	 * Reads the contents of a file and puts it into a string.
+	 * Files at least this large, in bytes, are read by mapping them in
+	 * memory instead of copying them through a buffer
+	 */
+	protected static final long s_mapThreshold = 4 * 1024 * 1024;
+
+	/**
+	 * Whether files can be read by mapping them in memory. On Windows, a
+	 * mapped file cannot be truncated until the mapping is garbage
+	 * collected, which would prevent writing the file just read.
+	 */
+	protected static final boolean s_canMap = !System.getProperty("os.name", "").startsWith("Windows");
+
+	/**
+	 * Reads the contents of a file and puts it into a string. The file is
+	 * decoded as UTF-8, whatever the platform; line endings are converted
+	 * to "\n", and the last line always ends with "\n".
 	 * @param f The file to read
 	 * @return The string with the file's contents, or the empty string if
 	 *   an error occurred. 
 	 */
 	public static String readToString(File f)
 	{
-		BufferedReader br = null;
-		StringBuilder sb = new StringBuilder();
-		try 
+		byte[] bytes;
+		try
+		{
+			bytes = readFully(f);
+		}
+		catch (IOException e)
 		{
-			String sCurrentLine;
-			br = new BufferedReader(new FileReader(f));
-			while ((sCurrentLine = br.readLine()) != null)
+			e.printStackTrace();
+			return "";
+		}
+		return decodeLines(bytes);
+	}
+
+	/**
+	 * Decodes UTF-8 text and normalizes its line endings the way a line by
+	 * line read would: "\r\n" and "\r" become "\n", and a newline is
+	 * added after the last line if it has none.
+	 * @param bytes The text
+	 * @return The decoded text
+	 */
+	protected static String decodeLines(byte[] bytes)
+	{
+		int len = bytes.length;
+		if (len == 0)
+		{
+			return "";
+		}
+		boolean ascii = true, has_cr = false;
+		for (int i = 0; i < len; i++)
+		{
+			byte b = bytes[i];
+			if (b < 0)
 			{
-				sb.append(sCurrentLine).append("\n");
+				ascii = false;
+				break;
 			}
-
-		} 
-		catch (IOException e) 
+			if (b == '\r')
+			{
+				has_cr = true;
+			}
+		}
+		boolean add_newline = bytes[len - 1] != '\n' && bytes[len - 1] != '\r';
+		if (ascii && !has_cr)
 		{
-			e.printStackTrace();
-		} 
-		finally 
+			// Most chapters: every byte is a character
+			String s = new String(bytes, 0, len, StandardCharsets.ISO_8859_1);
+			return add_newline ? s + "\n" : s;
+		}
+		String s = new String(bytes, 0, len, StandardCharsets.UTF_8);
+		if (s.indexOf('\r') < 0)
 		{
-			try 
+			return add_newline ? s + "\n" : s;
+		}
+		StringBuilder out = new StringBuilder(s.length() + 1);
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c == '\r')
 			{
-				if (br != null)
-					br.close();
-			} 
-			catch (IOException ex) 
+				out.append('\n');
+				if (i + 1 < s.length() && s.charAt(i + 1) == '\n')
+				{
+					i++;
+				}
+			}
+			else
+			{
+				out.append(c);
+			}
+		}
+		if (add_newline)
+		{
+			out.append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Reads the whole contents of a file in an array of the size of the
+	 * file. Large files are mapped in memory.
+	 * @param f The file to read
+	 * @return The contents
+	 * @throws IOException If the file cannot be read
+	 */
+	protected static byte[] readFully(File f) throws IOException
+	{
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try
+		{
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8)
+			{
+				throw new IOException(f + " is too large to be read in memory");
+			}
+			byte[] bytes = new byte[(int) size];
+			if (s_canMap && size >= s_mapThreshold)
+			{
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				buffer.get(bytes);
+				return bytes;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining())
 			{
-				ex.printStackTrace();
+				if (channel.read(buffer) < 0)
+				{
+					// The file has shrunk since its size was read
+					return Arrays.copyOf(bytes, buffer.position());
+				}
 			}
+			return bytes;
+		}
+		finally
+		{
+			channel.close();
 		}
-		return sb.toString();
 	}
 
 	/**
@@ -114,24 +221,21 @@ public class FileHelper
 	 */
 	public static byte[] readToBytes(File f)
 	{
-		FileInputStream fileInputStream = null;
-		byte[] bFile = new byte[(int) f.length()];
 		try 
 		{
-			//convert file into array of bytes
-			fileInputStream = new FileInputStream(f);
-			fileInputStream.read(bFile);
-			fileInputStream.close();
+			return readFully(f);
 		}
-		catch (Exception e)
+		catch (IOException e)
 		{
 			e.printStackTrace();
 		}
-		return bFile;
+		return new byte[0];
 	}
 	
 	/**
-	 * Writes the content of a string to a file
+	 * Writes the content of a string to a file, encoded as UTF-8. The file
+	 * is replaced atomically, and is not touched if it already has this
+	 * content.
 	 * @param f The file to write to. If the file does not exist, it will be
 	 *   created
 	 * @param content The content to write
@@ -140,15 +244,7 @@ public class FileHelper
 	{
 		try 
 		{
-			// if file doesnt exists, then create it
-			if (!f.exists()) 
-			{
-				createIfNotExists(f);
-			}
-			FileWriter fw = new FileWriter(f.getAbsoluteFile());
-			BufferedWriter bw = new BufferedWriter(fw);
-			bw.write(content);
-			bw.close();
+			writeIfChanged(f, content);
 		}
 		catch (IOException e) 
 		{
@@ -186,10 +282,7 @@ public class FileHelper
 			{
 				createIfNotExists(f);
 			}
-			//convert array of bytes into file
-			FileOutputStream fileOuputStream = new FileOutputStream(f); 
-			fileOuputStream.write(bFile);
-			fileOuputStream.close();
+			writeFully(f, bFile);
 		}
 		catch(Exception e)
 		{
@@ -197,6 +290,85 @@ public class FileHelper
 		}
 	}
 
+	/**
+	 * Writes the content of a string to a file, encoded as UTF-8, unless
+	 * the file already has this content. The file keeps its modification
+	 * date if it is not written, so that tools that look at dates do not
+	 * process it again.
+	 * @param f The file to write to. If the file or its parent directory
+	 *   do not exist, they are created
+	 * @param content The content to write
+	 * @return true if the file was written, false if it was unchanged
+	 * @throws IOException If the file cannot be read or written
+	 */
+	public static boolean writeIfChanged(File f, String content) throws IOException
+	{
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		if (f.isFile() && f.length() == bytes.length && Arrays.equals(readFully(f), bytes))
+		{
+			return false;
+		}
+		writeAtomically(f, bytes);
+		return true;
+	}
+
+	/**
+	 * Replaces the contents of a file. The contents are first written to a
+	 * temporary file in the same directory, which then replaces the file,
+	 * so that an interrupted write never leaves a truncated file behind.
+	 * The file is replaced atomically when the file system allows it.
+	 * @param f The file to write to. If the file or its parent directory
+	 *   do not exist, they are created
+	 * @param bytes The content to write
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void writeAtomically(File f, byte[] bytes) throws IOException
+	{
+		File parent = f.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File temp = File.createTempFile(f.getName(), ".tmp", parent);
+		try
+		{
+			writeFully(temp, bytes);
+			try
+			{
+				Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Replaces the contents of a file with an array of bytes, written in a
+	 * single pass
+	 * @param f The file
+	 * @param bytes The contents
+	 * @throws IOException If the file cannot be written
+	 */
+	protected static void writeFully(File f, byte[] bytes) throws IOException
+	{
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
 	/**
 	 * Deletes a file
 	 * @param filename The filename
@@ -541,65 +713,133 @@ public class FileHelper
 	}
 	
 	/**
-	 * Function stolen online to quickly copy directories.
-	 * 
-	 * @param src
-	 *            source directory
-	 * @param dest
-	 *            destination directory
-	 * @param incremental Set to true to only overwrite newer files 
-	 * @throws IOException
+	 * Computes a SHA-256 digest of the contents of a file
+	 * @param f The file
+	 * @return The digest, as a string of hexadecimal digits
+	 * @throws IOException If the file cannot be read
 	 */
-	public static void copyFolder(File src, File dest, boolean incremental) throws IOException 
+	public static String digest(File f) throws IOException
 	{
-		if (src.isDirectory()) 
+		MessageDigest md = newDigest();
+		InputStream in = new FileInputStream(f);
+		try
 		{
-			// if directory not exists, create it
-			if (!dest.exists()) 
+			byte[] buffer = new byte[65536];
+			int length;
+			while ((length = in.read(buffer)) > 0)
 			{
-				dest.mkdir();
+				md.update(buffer, 0, length);
 			}
-			// list all the directory contents
-			String files[] = src.list();
-			for (String file : files)
+		}
+		finally
+		{
+			in.close();
+		}
+		return toHex(md.digest());
+	}
+	
+	/**
+	 * Computes a SHA-256 digest of a string, encoded as UTF-8
+	 * @param s The string
+	 * @return The digest, as a string of hexadecimal digits
+	 */
+	public static String digest(String s)
+	{
+		MessageDigest md = newDigest();
+		md.update(s.getBytes(StandardCharsets.UTF_8));
+		return toHex(md.digest());
+	}
+	
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder out = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Checks whether two files have the same contents
+	 * @param f1 The first file
+	 * @param f2 The second file
+	 * @return true if both files exist and have the same contents,
+	 * false otherwise
+	 * @throws IOException If one of the files cannot be read
+	 */
+	public static boolean sameContents(File f1, File f2) throws IOException
+	{
+		if (!f1.isFile() || !f2.isFile() || f1.length() != f2.length())
+		{
+			return false;
+		}
+		InputStream in1 = new FileInputStream(f1);
+		InputStream in2 = new FileInputStream(f2);
+		try
+		{
+			byte[] buffer1 = new byte[65536];
+			byte[] buffer2 = new byte[65536];
+			int length;
+			while ((length = in1.read(buffer1)) > 0)
 			{
-				// construct the src and dest file structure
-				if (incremental && dest.exists() && src.lastModified() < dest.lastModified())
+				int read = 0;
+				while (read < length)
 				{
-					// Skip this file
-					System.out.println("SKIP " + src);
-					return;
+					int r = in2.read(buffer2, read, length - read);
+					if (r < 0)
+					{
+						return false;
+					}
+					read += r;
+				}
+				for (int i = 0; i < length; i++)
+				{
+					if (buffer1[i] != buffer2[i])
+					{
+						return false;
+					}
 				}
-				File srcFile = new File(src, file);
-				File destFile = new File(dest, file);
-				// recursive copy
-				copyFolder(srcFile, destFile, incremental);
 			}
-		} 
-		else
+			return in2.read() < 0;
+		}
+		finally
 		{
-			// if file, then copy it
-			// Use bytes stream to support all file types
-			if (incremental && dest.exists() && src.lastModified() < dest.lastModified())
-			{
-				// Skip this file
-				System.out.println("SKIP " + src);
-				return;
-			}
-			System.out.println("COPY " + src);
-			InputStream in = new FileInputStream(src);
-			OutputStream out = new FileOutputStream(dest);
-			byte[] buffer = new byte[1024];
-			int length;
-			// copy the file content in bytes
-			while ((length = in.read(buffer)) > 0) 
-			{
-				out.write(buffer, 0, length);
-			}
-			in.close();
-			out.close();
+			in1.close();
+			in2.close();
 		}
 	}
+	
+	/**
+	 * Copies a directory and its contents, with a {@link TreeSync}, and
+	 * prints a summary of what was copied.
+	 * 
+	 * @param src
+	 *            source directory
+	 * @param dest
+	 *            destination directory
+	 * @param incremental Set to true to only overwrite files whose
+	 *   contents differ from the source 
+	 * @throws IOException
+	 */
+	public static void copyFolder(File src, File dest, boolean incremental) throws IOException 
+	{
+		TreeSync sync = new TreeSync(src, dest, 1);
+		System.out.println(sync.sync(incremental));
+	}
 
 
 }
@@ -0,0 +1,281 @@
+/*
+  LabPal, a versatile environment for running experiments on a computer
+  Copyright (C) 2015-2017 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.labpal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of a folder of a git working tree: the commit checked out, and
+ * the files that differ from it. Comparing the state recorded at the end
+ * of a build with the current one tells which files changed since, without
+ * reading the other files. Git is run as a separate process; all paths
+ * are relative to the folder, and files outside of it are ignored.
+ */
+public class GitState
+{
+	/**
+	 * The first line of a file where a state is saved. Files that do not
+	 * start with this line are ignored.
+	 */
+	protected static final String s_header = "# labpal git state v1";
+
+	/**
+	 * The command that starts git
+	 */
+	protected static final String s_gitPath = "git";
+
+	/**
+	 * The time, in seconds, a git command may take before it is killed
+	 */
+	protected static final long s_timeout = 60;
+
+	/**
+	 * The commit checked out
+	 */
+	protected final String m_commit;
+
+	/**
+	 * The files that differ from the commit: modified, deleted or not
+	 * tracked
+	 */
+	protected final Set<String> m_dirty;
+
+	/**
+	 * Creates a new state
+	 * @param commit The commit checked out
+	 * @param dirty The files that differ from the commit
+	 */
+	public GitState(String commit, Set<String> dirty)
+	{
+		super();
+		m_commit = commit;
+		m_dirty = dirty;
+	}
+
+	/**
+	 * Reads the current state of a folder. The commands asking git for the
+	 * commit, the modified files and the files that are not tracked run at
+	 * the same time.
+	 * @param folder The folder
+	 * @return The state, or {@code null} if git is not installed, the
+	 * folder is not in a git working tree or it has no commit yet
+	 */
+	public static GitState read(File folder)
+	{
+		CompletableFuture<CommandResult> head = git(folder, "rev-parse", "--verify", "HEAD");
+		CompletableFuture<CommandResult> modified = git(folder, "diff", "--name-only", "-z", "--no-renames", "--relative", "HEAD", "--");
+		CompletableFuture<CommandResult> untracked = git(folder, "ls-files", "--others", "--exclude-standard", "-z");
+		try
+		{
+			String commit = getOutput(head).trim();
+			Set<String> dirty = new TreeSet<String>();
+			dirty.addAll(splitPaths(getOutput(modified)));
+			dirty.addAll(splitPaths(getOutput(untracked)));
+			return new GitState(commit, dirty);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the files of the folder that may have changed since a previous
+	 * state: those that differ between the commit of that state and the
+	 * working tree (including renamed and deleted files, under both their
+	 * names), those that are not tracked, and those that differed from the
+	 * commit of the previous state, which may have been restored since.
+	 * @param folder The folder
+	 * @param previous The previous state
+	 * @return The paths of the files, relative to the folder
+	 * @throws IOException If git cannot compare the commit of the previous
+	 * state, for example because it no longer exists
+	 */
+	public Set<String> changedSince(File folder, GitState previous) throws IOException
+	{
+		String status = getOutput(git(folder, "diff", "--name-status", "-z", "-M", "--relative", previous.m_commit, "--"));
+		Set<String> changed = new TreeSet<String>(m_dirty);
+		changed.addAll(previous.m_dirty);
+		List<String> parts = splitPaths(status);
+		for (int i = 0; i < parts.size(); i++)
+		{
+			char kind = parts.get(i).charAt(0);
+			if (kind == 'R' || kind == 'C')
+			{
+				// A renamed or copied file: the old and the new path follow
+				changed.add(parts.get(++i));
+			}
+			if (i + 1 < parts.size())
+			{
+				changed.add(parts.get(++i));
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Gets the commit checked out
+	 * @return The hash of the commit
+	 */
+	public String getCommit()
+	{
+		return m_commit;
+	}
+
+	/**
+	 * Gets the files that differ from the commit checked out
+	 * @return The paths of the files, relative to the folder
+	 */
+	public Set<String> getDirty()
+	{
+		return Collections.unmodifiableSet(m_dirty);
+	}
+
+	/**
+	 * Loads a state saved by {@link #save(File)}
+	 * @param f The file
+	 * @return The state, or {@code null} if the file does not exist or
+	 * cannot be read
+	 */
+	public static GitState load(File f)
+	{
+		List<String> lines;
+		try
+		{
+			lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		if (lines.size() < 2 || !lines.get(0).equals(s_header))
+		{
+			return null;
+		}
+		Set<String> dirty = new TreeSet<String>();
+		for (int i = 2; i < lines.size(); i++)
+		{
+			dirty.add(lines.get(i));
+		}
+		return new GitState(lines.get(1), dirty);
+	}
+
+	/**
+	 * Saves the state to a file, replacing it atomically
+	 * @param f The file
+	 * @throws IOException If the file cannot be written
+	 */
+	public void save(File f) throws IOException
+	{
+		StringBuilder out = new StringBuilder();
+		out.append(s_header).append("\n");
+		out.append(m_commit).append("\n");
+		for (String path : m_dirty)
+		{
+			if (path.indexOf('\n') < 0)
+			{
+				out.append(path).append("\n");
+			}
+		}
+		FileHelper.writeAtomically(f, out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Starts a git command on a folder
+	 * @param folder The folder
+	 * @param args The arguments of the command
+	 * @return The future result of the command
+	 */
+	protected static CompletableFuture<CommandResult> git(File folder, String ... args)
+	{
+		String[] command = new String[3 + args.length];
+		command[0] = s_gitPath;
+		command[1] = "-C";
+		command[2] = folder.getAbsolutePath();
+		System.arraycopy(args, 0, command, 3, args.length);
+		return new CommandRunner(command).execute(s_timeout, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Waits for a git command and gets its output
+	 * @param future The future result of the command
+	 * @return The output of the command
+	 * @throws IOException If the command cannot be run, fails or times out
+	 */
+	protected static String getOutput(CompletableFuture<CommandResult> future) throws IOException
+	{
+		CommandResult result;
+		try
+		{
+			result = future.get();
+		}
+		catch (InterruptedException e)
+		{
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for git", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Cannot run git", e.getCause());
+		}
+		if (result.getExitCode() != 0)
+		{
+			throw new IOException("git exited with code " + result.getExitCode() + ": " + result.getStderrString().trim());
+		}
+		return result.getStdoutString();
+	}
+
+	/**
+	 * Splits the output of a git command run with {@code -z}
+	 * @param output The output
+	 * @return The fields, which are separated by NUL characters
+	 */
+	protected static List<String> splitPaths(String output)
+	{
+		List<String> paths = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i < output.length(); i++)
+		{
+			if (output.charAt(i) == '\0')
+			{
+				if (i > start)
+				{
+					paths.add(output.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		if (start < output.length())
+		{
+			paths.add(output.substring(start));
+		}
+		return paths;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+  LabPal, a versatile environment for running experiments on a computer
+  Copyright (C) 2015-2017 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.labpal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts threads that spend most of their time waiting, such as those
+ * reading the output of a process. On a JDK that supports virtual threads
+ * (21 and later), these threads are virtual, and cost no OS thread while
+ * they wait; otherwise, they are platform daemon threads. The virtual
+ * thread API is called by reflection, so that this class also compiles and
+ * runs on older JDKs.
+ */
+public class ThreadHelper
+{
+	/**
+	 * The method starting a virtual thread, or {@code null} if virtual
+	 * threads are not available
+	 */
+	protected static final Method s_startVirtual;
+
+	/**
+	 * The method creating an executor that runs each task on a new virtual
+	 * thread, or {@code null} if virtual threads are not available
+	 */
+	protected static final Method s_newVirtualExecutor;
+
+	static
+	{
+		Method start = null, executor = null;
+		try
+		{
+			start = Thread.class.getMethod("startVirtualThread", Runnable.class);
+			executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			// On JDKs where virtual threads are a preview feature, the methods
+			// exist but throw an exception unless previews are enabled
+			((Thread) start.invoke(null, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// Nothing to do
+				}
+			})).join();
+		}
+		catch (Exception e)
+		{
+			start = null;
+			executor = null;
+		}
+		s_startVirtual = start;
+		s_newVirtualExecutor = executor;
+	}
+
+	private ThreadHelper()
+	{
+		super();
+	}
+
+	/**
+	 * Checks whether threads are started as virtual threads
+	 * @return true if they are
+	 */
+	public static boolean isVirtual()
+	{
+		return s_startVirtual != null;
+	}
+
+	/**
+	 * Starts a thread
+	 * @param r The code the thread runs
+	 * @param name The name of the thread, if it is a platform thread
+	 * @return The thread
+	 */
+	public static Thread start(Runnable r, String name)
+	{
+		if (s_startVirtual != null)
+		{
+			try
+			{
+				return (Thread) s_startVirtual.invoke(null, r);
+			}
+			catch (Exception e)
+			{
+				// Fall back on a platform thread
+			}
+		}
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Creates an executor for tasks that spend most of their time waiting.
+	 * With virtual threads, each task runs on its own virtual thread, and
+	 * the number of tasks running at the same time is not bounded: callers
+	 * must bound the use of scarce resources themselves.
+	 * @param platform_threads The number of threads of the executor if
+	 * virtual threads are not available
+	 * @return The executor
+	 */
+	public static ExecutorService newExecutor(int platform_threads)
+	{
+		if (s_newVirtualExecutor != null)
+		{
+			try
+			{
+				return (ExecutorService) s_newVirtualExecutor.invoke(null);
+			}
+			catch (Exception e)
+			{
+				// Fall back on platform threads
+			}
+		}
+		return Executors.newFixedThreadPool(Math.max(1, platform_threads));
+	}
+}
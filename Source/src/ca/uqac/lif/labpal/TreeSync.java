@@ -0,0 +1,791 @@
+/*
+  LabPal, a versatile environment for running experiments on a computer
+  Copyright (C) 2015-2017 Sylvain Hallé
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.labpal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies a folder and its contents into another one. The tree is walked
+ * once, with the attributes of each file read during the walk, and the
+ * files are copied by a bounded pool of threads with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the operating system copy the data without it going through
+ * the JVM.
+ * <p>
+ * In incremental mode, a file is only copied if it has changed. The size
+ * and a CRC-32C checksum of each copied file can be recorded in a
+ * manifest; a file whose size and checksum are those of the manifest, and
+ * whose copy still has that size, is skipped, which only requires reading
+ * the source. Without an entry in the manifest, the file is compared byte
+ * for byte with its copy. File dates are never used.
+ * <p>
+ * Instead of being copied, files can be materialized in the destination
+ * as hard links, symbolic links or reflinks (copy-on-write clones, on the
+ * file systems that support them) to the source; see
+ * {@link #setStrategy(Strategy)}. When a file cannot be materialized that
+ * way, for example because the two folders are on different devices, it
+ * is copied. Files that are written to in the destination must always be
+ * copied, since writing to a link would modify the source; see
+ * {@link #alwaysCopy(String)}.
+ */
+public class TreeSync
+{
+	/**
+	 * The first line of a manifest file. Files that do not start with this
+	 * line are ignored.
+	 */
+	protected static final String s_header = "# labpal tree sync v1";
+
+	/**
+	 * The folder to copy
+	 */
+	protected final Path m_source;
+
+	/**
+	 * The folder it is copied to
+	 */
+	protected final Path m_dest;
+
+	/**
+	 * The number of files copied at the same time
+	 */
+	protected final int m_threads;
+
+	/**
+	 * The file where the manifest is stored, or {@code null} if no manifest
+	 * is kept
+	 */
+	protected File m_manifest = null;
+
+	/**
+	 * The size and checksum of each file copied, by its path relative to
+	 * the source folder
+	 */
+	protected final Map<String,String> m_entries = new ConcurrentHashMap<String,String>();
+
+	/**
+	 * How files are materialized in the destination
+	 */
+	protected Strategy m_strategy = Strategy.COPY;
+
+	/**
+	 * The extensions of the files that are copied whatever the strategy
+	 */
+	protected final Set<String> m_alwaysCopy = new HashSet<String>();
+
+	/**
+	 * The pairs of file stores between which a reflink has failed
+	 */
+	protected final Set<String> m_noReflink = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The patterns of the files and folders that are never copied
+	 */
+	protected final List<PathMatcher> m_excludes = new ArrayList<PathMatcher>();
+
+	/**
+	 * The ways a file can be materialized in the destination
+	 */
+	public static enum Strategy
+	{
+		/**
+		 * The file is copied
+		 */
+		COPY,
+
+		/**
+		 * The file is a hard link to the source
+		 */
+		HARDLINK,
+
+		/**
+		 * The file is a symbolic link to the source
+		 */
+		SYMLINK,
+
+		/**
+		 * The file is a copy-on-write clone of the source, made with
+		 * <tt>cp --reflink=always</tt>
+		 */
+		REFLINK
+	}
+
+	/**
+	 * Creates a new synchronization between two folders
+	 * @param source The folder to copy
+	 * @param dest The folder it is copied to
+	 * @param threads The number of files copied at the same time
+	 */
+	public TreeSync(File source, File dest, int threads)
+	{
+		super();
+		m_source = source.toPath().toAbsolutePath().normalize();
+		m_dest = dest.toPath().toAbsolutePath().normalize();
+		m_threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Sets how files are materialized in the destination
+	 * @param strategy The strategy
+	 */
+	public void setStrategy(Strategy strategy)
+	{
+		m_strategy = strategy;
+	}
+
+	/**
+	 * Makes the files with an extension be copied whatever the strategy
+	 * @param extension The extension, such as "{@code .md}"
+	 */
+	public void alwaysCopy(String extension)
+	{
+		m_alwaysCopy.add(extension.toLowerCase());
+	}
+
+	/**
+	 * Keeps the size and checksum of the copied files in a manifest, and
+	 * loads the entries it already contains
+	 * @param f The file where the manifest is stored
+	 */
+	public synchronized void setManifest(File f)
+	{
+		m_manifest = f;
+		m_entries.clear();
+		List<String> lines;
+		try
+		{
+			lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+		if (lines.isEmpty() || !lines.get(0).equals(s_header))
+		{
+			return;
+		}
+		for (int i = 1; i < lines.size(); i++)
+		{
+			String[] parts = lines.get(i).split("\t", -1);
+			if (parts.length == 2)
+			{
+				m_entries.put(parts[0], parts[1]);
+			}
+		}
+	}
+
+	/**
+	 * Copies the whole source folder
+	 * @param incremental Whether to skip the files that have not changed
+	 * @return A summary of what was copied
+	 * @throws IOException If a file cannot be copied
+	 */
+	public Summary sync(boolean incremental) throws IOException
+	{
+		return sync("", incremental);
+	}
+
+	/**
+	 * Copies a file or a folder of the source folder
+	 * @param relative The path of the file or folder, relative to the source
+	 * folder
+	 * @param incremental Whether to skip the files that have not changed
+	 * @return A summary of what was copied
+	 * @throws IOException If a file cannot be copied
+	 */
+	public synchronized Summary sync(String relative, final boolean incremental) throws IOException
+	{
+		final Summary summary = new Summary();
+		Path start = m_source.resolve(relative).normalize();
+		Files.createDirectories(m_dest.resolve(m_source.relativize(start)).getParent());
+		final ExecutorService pool = Executors.newFixedThreadPool(m_threads);
+		final List<Future<Void>> copies = new ArrayList<Future<Void>>();
+		try
+		{
+			walk(start, true, new FileCallback()
+			{
+				@Override
+				public void visit(Path file, long size)
+				{
+					copies.add(pool.submit(new FileCopy(file, size, incremental, summary)));
+				}
+			});
+			await(copies);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		saveManifest();
+		summary.m_elapsed = System.nanoTime() - summary.m_start;
+		return summary;
+	}
+
+	/**
+	 * Copies a list of files of the source folder. Files that do not exist,
+	 * are outside the source folder or are excluded are ignored.
+	 * @param paths The paths of the files, relative to the source folder
+	 * @param incremental Whether to skip the files that have not changed
+	 * @return A summary of what was copied
+	 * @throws IOException If a file cannot be copied
+	 */
+	public synchronized Summary syncFiles(Collection<String> paths, boolean incremental) throws IOException
+	{
+		Summary summary = new Summary();
+		ExecutorService pool = Executors.newFixedThreadPool(m_threads);
+		List<Future<Void>> copies = new ArrayList<Future<Void>>();
+		try
+		{
+			for (String path : paths)
+			{
+				Path file = m_source.resolve(path).normalize();
+				if (!file.startsWith(m_source) || file.startsWith(m_dest) || isExcluded(file) || !Files.isRegularFile(file))
+				{
+					continue;
+				}
+				Files.createDirectories(m_dest.resolve(m_source.relativize(file)).getParent());
+				copies.add(pool.submit(new FileCopy(file, Files.size(file), incremental, summary)));
+			}
+			await(copies);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		saveManifest();
+		summary.m_elapsed = System.nanoTime() - summary.m_start;
+		return summary;
+	}
+
+	/**
+	 * Deletes copies of files that no longer exist in the source folder,
+	 * and forgets them in the manifest
+	 * @param paths The paths of the files, relative to the source folder
+	 * @throws IOException If a file cannot be deleted
+	 */
+	public synchronized void delete(Collection<String> paths) throws IOException
+	{
+		for (String path : paths)
+		{
+			Path dest = m_dest.resolve(path).normalize();
+			if (!dest.startsWith(m_dest) || Files.isDirectory(dest))
+			{
+				continue;
+			}
+			Files.deleteIfExists(dest);
+			m_entries.remove(path);
+		}
+		saveManifest();
+	}
+
+	/**
+	 * Finds the files of the source folder that match glob patterns, such
+	 * as "{@code **}{@code /*.png}". The patterns are matched against the
+	 * paths relative to the source folder, with "/" as the separator.
+	 * Excluded files are not returned.
+	 * @param globs The patterns
+	 * @return The paths of the files that match at least one pattern,
+	 * relative to the source folder
+	 * @throws IOException If the folder cannot be read
+	 */
+	public List<String> find(Collection<String> globs) throws IOException
+	{
+		final List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+		for (String glob : globs)
+		{
+			matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+		}
+		final List<String> found = new ArrayList<String>();
+		if (matchers.isEmpty())
+		{
+			return found;
+		}
+		walk(m_source, false, new FileCallback()
+		{
+			@Override
+			public void visit(Path file, long size)
+			{
+				Path relative = m_source.relativize(file);
+				for (PathMatcher m : matchers)
+				{
+					if (m.matches(relative))
+					{
+						found.add(relative.toString().replace(File.separatorChar, '/'));
+						break;
+					}
+				}
+			}
+		});
+		return found;
+	}
+
+	/**
+	 * Excludes the files and folders that match a glob pattern from all
+	 * the copies. The pattern is matched against the paths relative to the
+	 * source folder; a folder that matches is skipped with its contents.
+	 * @param glob The pattern, such as "{@code node_modules}" or
+	 * "{@code **}{@code /_book}"
+	 */
+	public void exclude(String glob)
+	{
+		m_excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+	}
+
+	/**
+	 * Checks whether a file or folder is excluded
+	 * @param path The absolute path of the file or folder
+	 * @return true if it matches one of the exclusion patterns
+	 */
+	protected boolean isExcluded(Path path)
+	{
+		Path relative = m_source.relativize(path);
+		for (PathMatcher m : m_excludes)
+		{
+			if (m.matches(relative))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Walks a part of the source folder
+	 * @param start The file or folder to walk
+	 * @param create_dirs Whether to create the folders in the destination
+	 * as they are visited
+	 * @param callback Called on each regular file that is not excluded
+	 * @throws IOException If the folder cannot be read
+	 */
+	protected void walk(Path start, final boolean create_dirs, final FileCallback callback) throws IOException
+	{
+		Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				if (dir.equals(m_dest) || (!dir.equals(m_source) && isExcluded(dir)))
+				{
+					// Do not copy the destination into itself when it is inside the source
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (create_dirs)
+				{
+					Files.createDirectories(m_dest.resolve(m_source.relativize(dir)));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				if (attrs.isRegularFile() && !isExcluded(file))
+				{
+					callback.visit(file, attrs.size());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Waits for copies to finish
+	 * @param copies The copies
+	 * @throws IOException If one of the copies has failed
+	 */
+	protected static void await(List<Future<Void>> copies) throws IOException
+	{
+		try
+		{
+			for (Future<Void> copy : copies)
+			{
+				copy.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while copying files", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Receives the files found by {@link TreeSync#walk(Path, boolean, FileCallback)}
+	 */
+	protected static interface FileCallback
+	{
+		/**
+		 * Called on a file
+		 * @param file The absolute path of the file
+		 * @param size The size of the file
+		 */
+		public void visit(Path file, long size);
+	}
+
+	/**
+	 * Writes the manifest, if one is kept. The file is replaced atomically
+	 * when the file system allows it.
+	 * @throws IOException If the manifest cannot be written
+	 */
+	protected void saveManifest() throws IOException
+	{
+		if (m_manifest == null)
+		{
+			return;
+		}
+		StringBuilder out = new StringBuilder();
+		out.append(s_header).append("\n");
+		for (Map.Entry<String,String> e : new TreeMap<String,String>(m_entries).entrySet())
+		{
+			out.append(e.getKey()).append("\t").append(e.getValue()).append("\n");
+		}
+		FileHelper.writeAtomically(m_manifest, out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Computes the entry of the manifest for a file
+	 * @param f The file
+	 * @param size The size of the file
+	 * @return The entry, made of the size and the CRC-32C checksum of the
+	 * file
+	 * @throws IOException If the file cannot be read
+	 */
+	protected static String checksum(Path f, long size) throws IOException
+	{
+		CRC32C crc = new CRC32C();
+		FileChannel in = FileChannel.open(f, StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+			while (in.read(buffer) >= 0)
+			{
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return size + " " + Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Copies a file with a zero-copy transfer
+	 * @param from The file
+	 * @param to The copy
+	 * @param size The size of the file
+	 * @throws IOException If the file cannot be copied
+	 */
+	protected static void transfer(Path from, Path to, long size) throws IOException
+	{
+		FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+		try
+		{
+			FileChannel out = FileChannel.open(to, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			try
+			{
+				long position = 0;
+				while (position < size)
+				{
+					long n = in.transferTo(position, size - position, out);
+					if (n <= 0)
+					{
+						// The file has become shorter since its size was read
+						break;
+					}
+					position += n;
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Copies one file, unless it has not changed
+	 */
+	protected class FileCopy implements Callable<Void>
+	{
+		protected final Path m_file;
+
+		protected final long m_size;
+
+		protected final boolean m_incremental;
+
+		protected final Summary m_summary;
+
+		public FileCopy(Path file, long size, boolean incremental, Summary summary)
+		{
+			super();
+			m_file = file;
+			m_size = size;
+			m_incremental = incremental;
+			m_summary = summary;
+		}
+
+		@Override
+		public Void call() throws IOException
+		{
+			String key = m_source.relativize(m_file).toString().replace(File.separatorChar, '/');
+			Path dest = m_dest.resolve(m_source.relativize(m_file));
+			Strategy strategy = getStrategy(key);
+			if (m_incremental && strategy != Strategy.COPY && Files.exists(dest) && Files.isSameFile(m_file, dest))
+			{
+				// Already a link to the source
+				m_summary.m_skipped.incrementAndGet();
+				return null;
+			}
+			String entry = m_entries.get(key);
+			// Linking again costs less than comparing the contents
+			if (m_incremental && strategy == Strategy.COPY && !Files.isSymbolicLink(dest) && Files.isRegularFile(dest) && Files.size(dest) == m_size && !Files.isSameFile(m_file, dest))
+			{
+				if (entry != null && entry.startsWith(m_size + " "))
+				{
+					String current = checksum(m_file, m_size);
+					if (current.equals(entry))
+					{
+						m_summary.m_skipped.incrementAndGet();
+						return null;
+					}
+				}
+				else if (FileHelper.sameContents(m_file.toFile(), dest.toFile()))
+				{
+					if (m_manifest != null)
+					{
+						m_entries.put(key, checksum(m_file, m_size));
+					}
+					m_summary.m_skipped.incrementAndGet();
+					return null;
+				}
+			}
+			// Never write through a link to the source
+			Files.deleteIfExists(dest);
+			if (strategy != Strategy.COPY)
+			{
+				if (link(strategy, m_file, dest))
+				{
+					m_entries.remove(key);
+					m_summary.m_linked.incrementAndGet();
+					return null;
+				}
+				m_summary.m_fallbacks.incrementAndGet();
+			}
+			transfer(m_file, dest, m_size);
+			if (m_manifest != null)
+			{
+				// The source is still in the cache of the operating system
+				m_entries.put(key, checksum(m_file, m_size));
+			}
+			m_summary.m_copied.incrementAndGet();
+			m_summary.m_bytes.addAndGet(m_size);
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the strategy used for a file
+	 * @param path The path of the file
+	 * @return The strategy
+	 */
+	protected Strategy getStrategy(String path)
+	{
+		int dot = path.lastIndexOf('.');
+		if (dot >= 0 && m_alwaysCopy.contains(path.substring(dot).toLowerCase()))
+		{
+			return Strategy.COPY;
+		}
+		return m_strategy;
+	}
+
+	/**
+	 * Materializes a file as a link to its source
+	 * @param strategy The kind of link
+	 * @param from The source file
+	 * @param to The file to create, which must not exist
+	 * @return true if the link has been created, false if the file must be
+	 * copied instead
+	 */
+	protected boolean link(Strategy strategy, Path from, Path to)
+	{
+		try
+		{
+			switch (strategy)
+			{
+			case HARDLINK:
+				Files.createLink(to, from);
+				return true;
+			case SYMLINK:
+				Files.createSymbolicLink(to, from);
+				return true;
+			case REFLINK:
+				String stores = Files.getFileStore(from) + " -> " + Files.getFileStore(to.getParent());
+				if (m_noReflink.contains(stores))
+				{
+					return false;
+				}
+				CommandRunner runner = new CommandRunner(new String[] {"cp", "--reflink=always", from.toString(), to.toString()});
+				runner.run();
+				if (runner.getErrorCode() == 0)
+				{
+					return true;
+				}
+				// Do not try again between these two file systems
+				m_noReflink.add(stores);
+				Files.deleteIfExists(to);
+				return false;
+			default:
+				return false;
+			}
+		}
+		catch (IOException e)
+		{
+			// For example, the two files are on different devices
+			return false;
+		}
+		catch (UnsupportedOperationException e)
+		{
+			return false;
+		}
+		catch (SecurityException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * What a synchronization has done
+	 */
+	public static class Summary
+	{
+		protected final AtomicLong m_copied = new AtomicLong();
+
+		protected final AtomicLong m_skipped = new AtomicLong();
+
+		protected final AtomicLong m_bytes = new AtomicLong();
+
+		protected final AtomicLong m_linked = new AtomicLong();
+
+		protected final AtomicLong m_fallbacks = new AtomicLong();
+
+		protected final long m_start = System.nanoTime();
+
+		protected long m_elapsed = 0;
+
+		/**
+		 * Gets the number of files copied
+		 * @return The number of files
+		 */
+		public long getCopied()
+		{
+			return m_copied.get();
+		}
+
+		/**
+		 * Gets the number of files skipped because they had not changed
+		 * @return The number of files
+		 */
+		public long getSkipped()
+		{
+			return m_skipped.get();
+		}
+
+		/**
+		 * Gets the number of files materialized as links to their source
+		 * @return The number of files
+		 */
+		public long getLinked()
+		{
+			return m_linked.get();
+		}
+
+		/**
+		 * Gets the number of files that were copied because they could not
+		 * be linked
+		 * @return The number of files
+		 */
+		public long getFallbacks()
+		{
+			return m_fallbacks.get();
+		}
+
+		/**
+		 * Gets the number of bytes copied
+		 * @return The number of bytes
+		 */
+		public long getBytes()
+		{
+			return m_bytes.get();
+		}
+
+		@Override
+		public String toString()
+		{
+			String out = String.format("Copied %d files (%.1f MB), ", m_copied.get(), m_bytes.get() / 1e6);
+			if (m_linked.get() > 0 || m_fallbacks.get() > 0)
+			{
+				out += String.format("linked %d files (%d could not be linked and were copied), ", m_linked.get(), m_fallbacks.get());
+			}
+			return out + String.format("skipped %d unchanged files in %.1f s", m_skipped.get(), m_elapsed / 1e9);
+		}
+	}
+}
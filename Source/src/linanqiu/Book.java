@@ -0,0 +1,555 @@
+package linanqiu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The structure of a book, as described by its {@code SUMMARY.md} file.
+ * The summary is read in a single pass, line by line: each line that
+ * contains a link {@code [title](path#anchor)} is an entry, and the
+ * indentation of the list items gives the nesting of the entries, at any
+ * depth. A file listed several times is only kept the first time; links
+ * to other sites are ignored.
+ * <p>
+ * The attributes of the files of the chapters are read once, by
+ * {@link #stat(File)}, and shared by all the steps of a build.
+ */
+public class Book
+{
+	/**
+	 * The beginning of a link that points to another site
+	 */
+	protected static final Pattern s_external = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]*:");
+
+	/**
+	 * The number of columns a tab counts for in the indentation of a list
+	 */
+	protected static final int s_tabWidth = 4;
+
+	/**
+	 * The chapters of the book, in the order of the summary, indexed by the
+	 * path of their file relative to the folder of the book
+	 */
+	protected final Map<String,Chapter> m_chapters = new LinkedHashMap<String,Chapter>();
+
+	/**
+	 * The chapters that are not nested in another one
+	 */
+	protected final List<Chapter> m_roots = new ArrayList<Chapter>();
+
+	/**
+	 * Creates an empty book
+	 */
+	public Book()
+	{
+		super();
+	}
+
+	/**
+	 * Reads the structure of a book from its summary
+	 * @param summary The summary file, encoded as UTF-8. Malformed bytes
+	 * are replaced, as {@link ca.uqac.lif.labpal.FileHelper#readToString(File)}
+	 * does for the chapters.
+	 * @return The book
+	 * @throws IOException If the file cannot be read
+	 */
+	public static Book read(File summary) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(summary), StandardCharsets.UTF_8));
+		try
+		{
+			return read(reader);
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads the structure of a book from its summary
+	 * @param summary A reader on the contents of the summary
+	 * @return The book
+	 * @throws IOException If the summary cannot be read
+	 */
+	public static Book read(Reader summary) throws IOException
+	{
+		Book book = new Book();
+		BufferedReader reader = summary instanceof BufferedReader ? (BufferedReader) summary : new BufferedReader(summary);
+		// The indentation and the chapter of the list items that enclose the
+		// current line; the chapter is null for an item that is not a file of
+		// the book
+		List<Integer> indents = new ArrayList<Integer>();
+		List<Chapter> parents = new ArrayList<Chapter>();
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			int indent = 0, pos = 0;
+			for (; pos < line.length(); pos++)
+			{
+				char c = line.charAt(pos);
+				if (c == ' ')
+				{
+					indent++;
+				}
+				else if (c == '\t')
+				{
+					indent += s_tabWidth - indent % s_tabWidth;
+				}
+				else
+				{
+					break;
+				}
+			}
+			String[] link = findLink(line, pos);
+			if (link == null)
+			{
+				continue;
+			}
+			int last = indents.size() - 1;
+			while (last >= 0 && indents.get(last) >= indent)
+			{
+				indents.remove(last);
+				parents.remove(last);
+				last--;
+			}
+			// Skip the enclosing items that are not files of the book
+			Chapter parent = null;
+			for (int i = last; i >= 0 && parent == null; i--)
+			{
+				parent = parents.get(i);
+			}
+			indents.add(indent);
+			parents.add(book.add(link[0], link[1], parent));
+		}
+		return book;
+	}
+
+	/**
+	 * Finds the first link of a line. Brackets in the title and parentheses
+	 * in the target may be nested, and the target may be followed by a
+	 * title in quotes.
+	 * @param line The line
+	 * @param from The position where to start looking
+	 * @return An array with the title and the target of the link, or
+	 * {@code null} if the line contains no link
+	 */
+	protected static String[] findLink(String line, int from)
+	{
+		int open = line.indexOf('[', from);
+		while (open >= 0)
+		{
+			int close = findClosing(line, open, '[', ']');
+			if (close < 0)
+			{
+				return null;
+			}
+			if (close + 1 < line.length() && line.charAt(close + 1) == '(')
+			{
+				int end = findClosing(line, close + 1, '(', ')');
+				if (end >= 0)
+				{
+					return new String[] {line.substring(open + 1, close).trim(), cleanTarget(line.substring(close + 2, end))};
+				}
+			}
+			open = line.indexOf('[', close + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the character closing a group, skipping nested groups and
+	 * escaped characters
+	 * @param line The line
+	 * @param start The position of the opening character
+	 * @param opening The opening character
+	 * @param closing The closing character
+	 * @return The position of the closing character, or -1 if the group is
+	 * not closed on this line
+	 */
+	protected static int findClosing(String line, int start, char opening, char closing)
+	{
+		int depth = 0;
+		for (int i = start; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (c == '\\')
+			{
+				i++;
+			}
+			else if (c == opening)
+			{
+				depth++;
+			}
+			else if (c == closing && --depth == 0)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the angle brackets and the title that may surround the
+	 * target of a link
+	 * @param target The text between the parentheses of the link
+	 * @return The target
+	 */
+	protected static String cleanTarget(String target)
+	{
+		target = target.trim();
+		if (target.startsWith("<"))
+		{
+			int end = target.indexOf('>');
+			return end < 0 ? target.substring(1) : target.substring(1, end);
+		}
+		int space = target.indexOf(' ');
+		if (space >= 0)
+		{
+			target = target.substring(0, space);
+		}
+		return target;
+	}
+
+	/**
+	 * Adds an entry to the book
+	 * @param title The title of the entry
+	 * @param target The target of its link, with an optional anchor
+	 * @param parent The chapter the entry is nested in, or {@code null}
+	 * @return The chapter of the entry, which is the chapter already in the
+	 * book if its file is listed twice, or {@code null} if the entry does
+	 * not point to a file of the book
+	 */
+	public Chapter add(String title, String target, Chapter parent)
+	{
+		if (s_external.matcher(target).find())
+		{
+			return null;
+		}
+		String anchor = "";
+		int hash = target.indexOf('#');
+		String path = target;
+		if (hash >= 0)
+		{
+			anchor = target.substring(hash + 1);
+			path = target.substring(0, hash);
+		}
+		path = normalize(path);
+		if (path.isEmpty())
+		{
+			return null;
+		}
+		Chapter chapter = m_chapters.get(path);
+		if (chapter != null)
+		{
+			return chapter;
+		}
+		chapter = new Chapter(title, path, anchor, parent, target.toLowerCase().contains("readme"));
+		m_chapters.put(path, chapter);
+		if (parent == null)
+		{
+			m_roots.add(chapter);
+		}
+		else
+		{
+			parent.m_children.add(chapter);
+		}
+		return chapter;
+	}
+
+	/**
+	 * Normalizes the path of a file: removes the leading slashes, which
+	 * GitBook resolves against the root of the book, the "." segments and
+	 * the ".." segments that follow a folder
+	 * @param path The path, with "/" as the separator
+	 * @return The normalized path
+	 */
+	protected static String normalize(String path)
+	{
+		while (path.startsWith("/"))
+		{
+			path = path.substring(1);
+		}
+		if (!path.contains("./"))
+		{
+			return path;
+		}
+		List<String> parts = new ArrayList<String>();
+		for (String part : path.split("/", -1))
+		{
+			if (part.equals("."))
+			{
+				continue;
+			}
+			if (part.equals("..") && !parts.isEmpty() && !parts.get(parts.size() - 1).equals(".."))
+			{
+				parts.remove(parts.size() - 1);
+				continue;
+			}
+			parts.add(part);
+		}
+		StringBuilder out = new StringBuilder();
+		for (String part : parts)
+		{
+			if (out.length() > 0)
+			{
+				out.append("/");
+			}
+			out.append(part);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Reads the attributes of the file of every chapter
+	 * @param folder The folder of the book
+	 */
+	public void stat(File folder)
+	{
+		Path root = folder.toPath();
+		for (Chapter c : m_chapters.values())
+		{
+			c.stat(root);
+		}
+	}
+
+	/**
+	 * Gets the chapters of the book, in the order of the summary
+	 * @return The chapters
+	 */
+	public Collection<Chapter> getChapters()
+	{
+		return Collections.unmodifiableCollection(m_chapters.values());
+	}
+
+	/**
+	 * Gets a chapter of the book
+	 * @param path The path of its file, relative to the folder of the book
+	 * @return The chapter, or {@code null} if the file is not in the book
+	 */
+	public Chapter getChapter(String path)
+	{
+		return m_chapters.get(path);
+	}
+
+	/**
+	 * Gets the chapters that are not nested in another one
+	 * @return The chapters
+	 */
+	public List<Chapter> getRoots()
+	{
+		return Collections.unmodifiableList(m_roots);
+	}
+
+	/**
+	 * Gets the number of chapters of the book
+	 * @return The number of chapters
+	 */
+	public int size()
+	{
+		return m_chapters.size();
+	}
+
+	/**
+	 * An entry of the summary
+	 */
+	public static class Chapter
+	{
+		/**
+		 * The title of the entry
+		 */
+		protected final String m_title;
+
+		/**
+		 * The path of the file, relative to the folder of the book
+		 */
+		protected final String m_path;
+
+		/**
+		 * The anchor of the link, or the empty string
+		 */
+		protected final String m_anchor;
+
+		/**
+		 * The entry this one is nested in, or {@code null}
+		 */
+		protected final Chapter m_parent;
+
+		/**
+		 * The entries nested in this one
+		 */
+		protected final List<Chapter> m_children = new ArrayList<Chapter>();
+
+		/**
+		 * Whether the link points to a "readme" file
+		 */
+		protected final boolean m_readme;
+
+		/**
+		 * The attributes of the file, or {@code null} if it does not exist or
+		 * has not been looked at
+		 */
+		protected BasicFileAttributes m_attributes = null;
+
+		/**
+		 * Creates a new chapter
+		 * @param title The title of the entry
+		 * @param path The path of the file
+		 * @param anchor The anchor of the link
+		 * @param parent The entry this one is nested in, or {@code null}
+		 * @param readme Whether the link points to a "readme" file
+		 */
+		protected Chapter(String title, String path, String anchor, Chapter parent, boolean readme)
+		{
+			super();
+			m_title = title;
+			m_path = path;
+			m_anchor = anchor;
+			m_parent = parent;
+			m_readme = readme;
+		}
+
+		/**
+		 * Reads the attributes of the file of the chapter
+		 * @param root The folder of the book
+		 */
+		protected void stat(Path root)
+		{
+			try
+			{
+				m_attributes = Files.readAttributes(root.resolve(m_path), BasicFileAttributes.class);
+				if (!m_attributes.isRegularFile())
+				{
+					m_attributes = null;
+				}
+			}
+			catch (IOException e)
+			{
+				// The file does not exist or cannot be read
+				m_attributes = null;
+			}
+		}
+
+		/**
+		 * Gets the title of the entry
+		 * @return The title
+		 */
+		public String getTitle()
+		{
+			return m_title;
+		}
+
+		/**
+		 * Gets the path of the file of the chapter
+		 * @return The path, relative to the folder of the book
+		 */
+		public String getPath()
+		{
+			return m_path;
+		}
+
+		/**
+		 * Gets the anchor of the link of the entry
+		 * @return The anchor, or the empty string
+		 */
+		public String getAnchor()
+		{
+			return m_anchor;
+		}
+
+		/**
+		 * Gets the entry this one is nested in
+		 * @return The entry, or {@code null}
+		 */
+		public Chapter getParent()
+		{
+			return m_parent;
+		}
+
+		/**
+		 * Gets the entries nested in this one
+		 * @return The entries
+		 */
+		public List<Chapter> getChildren()
+		{
+			return Collections.unmodifiableList(m_children);
+		}
+
+		/**
+		 * Gets the nesting depth of the entry
+		 * @return 0 for an entry that is not nested, 1 for an entry nested
+		 * in it, and so on
+		 */
+		public int getDepth()
+		{
+			int depth = 0;
+			for (Chapter c = m_parent; c != null; c = c.m_parent)
+			{
+				depth++;
+			}
+			return depth;
+		}
+
+		/**
+		 * Checks whether the chapter is a sub-chapter, whose sections are
+		 * shifted down one level. As in GitBook's conventions, the chapters
+		 * are the entries that point to a "readme" file.
+		 * @return true if the chapter is a sub-chapter
+		 */
+		public boolean isSubchapter()
+		{
+			return !m_readme;
+		}
+
+		/**
+		 * Checks whether the file of the chapter exists, as of the last call
+		 * to {@link Book#stat(File)}
+		 * @return true if it exists
+		 */
+		public boolean exists()
+		{
+			return m_attributes != null;
+		}
+
+		/**
+		 * Gets the size of the file of the chapter, as of the last call to
+		 * {@link Book#stat(File)}
+		 * @return The size, or -1 if the file does not exist
+		 */
+		public long getSize()
+		{
+			return m_attributes == null ? -1 : m_attributes.size();
+		}
+
+		/**
+		 * Gets the date the file of the chapter was last modified, as of the
+		 * last call to {@link Book#stat(File)}
+		 * @return The date, in milliseconds, or 0 if the file does not exist
+		 */
+		public long getLastModified()
+		{
+			return m_attributes == null ? 0 : m_attributes.lastModifiedTime().toMillis();
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_path;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package linanqiu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the source folder of a book and reports the files that change
+ * in it. Events are collected until the folder has been quiet for a short
+ * while, so that an editor saving several files (or writing a file in
+ * several steps) only triggers one rebuild.
+ */
+public class BookWatcher
+{
+	/**
+	 * The path returned in the set of changes when events have been lost,
+	 * meaning that any file may have changed
+	 */
+	public static final String OVERFLOW = "*";
+
+	/**
+	 * The folder being watched
+	 */
+	protected final Path m_root;
+
+	/**
+	 * A folder inside the watched folder that must be ignored, such as the
+	 * output folder. May be null.
+	 */
+	protected final Path m_excluded;
+
+	/**
+	 * The time, in milliseconds, the folder must be quiet before changes
+	 * are reported
+	 */
+	protected final long m_debounce;
+
+	/**
+	 * The underlying watch service
+	 */
+	protected final WatchService m_service;
+
+	/**
+	 * The folder each watch key was registered for
+	 */
+	protected final Map<WatchKey,Path> m_keys;
+
+	/**
+	 * Creates a watcher and registers all the folders below a root
+	 * @param root The folder to watch
+	 * @param excluded A folder to ignore, or {@code null}
+	 * @param debounce The time, in milliseconds, the folder must be quiet
+	 * before changes are reported
+	 * @throws IOException If the folders cannot be watched
+	 */
+	public BookWatcher(File root, File excluded, long debounce) throws IOException
+	{
+		super();
+		m_root = root.toPath().toAbsolutePath().normalize();
+		m_excluded = excluded == null ? null : excluded.toPath().toAbsolutePath().normalize();
+		m_debounce = debounce;
+		m_service = FileSystems.getDefault().newWatchService();
+		m_keys = new HashMap<WatchKey,Path>();
+		register(m_root);
+	}
+
+	/**
+	 * Registers a folder and all its subfolders with the watch service
+	 * @param folder The folder
+	 * @throws IOException If the folder cannot be watched
+	 */
+	protected void register(Path folder) throws IOException
+	{
+		if (m_excluded != null && folder.startsWith(m_excluded))
+		{
+			return;
+		}
+		WatchKey key = folder.register(m_service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		m_keys.put(key, folder);
+		File[] children = folder.toFile().listFiles();
+		if (children == null)
+		{
+			return;
+		}
+		for (File child : children)
+		{
+			if (child.isDirectory())
+			{
+				register(child.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Waits until some files change in the watched folder, and then until
+	 * the folder has been quiet for the debounce period.
+	 * @return The paths of the changed files, relative to the watched
+	 * folder and using forward slashes. The set contains {@link #OVERFLOW}
+	 * if some events have been lost.
+	 * @throws InterruptedException If the thread is interrupted while
+	 * waiting
+	 */
+	public Set<String> awaitChanges() throws InterruptedException
+	{
+		Set<String> changes = new TreeSet<String>();
+		WatchKey key = m_service.take();
+		while (key != null)
+		{
+			collect(key, changes);
+			key = m_service.poll(m_debounce, TimeUnit.MILLISECONDS);
+		}
+		return changes;
+	}
+
+	/**
+	 * Adds the files reported by a watch key to a set of changes, and
+	 * starts watching the folders that have been created
+	 * @param key The key
+	 * @param changes The set of changes
+	 */
+	protected void collect(WatchKey key, Set<String> changes)
+	{
+		Path folder = m_keys.get(key);
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || folder == null)
+			{
+				changes.add(OVERFLOW);
+				continue;
+			}
+			Path path = folder.resolve((Path) event.context());
+			if (m_excluded != null && path.startsWith(m_excluded))
+			{
+				continue;
+			}
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && path.toFile().isDirectory())
+			{
+				try
+				{
+					register(path);
+				}
+				catch (IOException e)
+				{
+					changes.add(OVERFLOW);
+				}
+			}
+			changes.add(m_root.relativize(path).toString().replace(File.separatorChar, '/'));
+		}
+		if (!key.reset())
+		{
+			m_keys.remove(key);
+		}
+	}
+
+	/**
+	 * Stops watching the folder
+	 * @throws IOException If the watch service cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		m_service.close();
+	}
+}
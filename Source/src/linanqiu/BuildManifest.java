@@ -0,0 +1,240 @@
+package linanqiu;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+
+import ca.uqac.lif.labpal.FileHelper;
+
+/**
+ * Records, for each chapter of the book, a digest of its source Markdown
+ * file, of the LaTeX file generated from it, and of the configuration it
+ * was generated with, as well as the features of the chapter that have an
+ * influence on the preamble. The manifest is kept in the output directory between
+ * runs, so that an incremental build can tell which chapters actually
+ * changed without relying on file dates.
+ */
+public class BuildManifest
+{
+	/**
+	 * The first line of a manifest file. Files that do not start with this
+	 * line are ignored.
+	 */
+	protected static final String s_header = "# gitbook-pandoc manifest v1";
+
+	/**
+	 * The file where the manifest is stored
+	 */
+	protected final File m_file;
+
+	/**
+	 * The entries of the manifest, indexed by the path of the chapter
+	 * relative to the output directory
+	 */
+	protected final Map<String,Entry> m_entries;
+
+	/**
+	 * Creates an empty manifest
+	 * @param f The file where the manifest is stored
+	 */
+	public BuildManifest(File f)
+	{
+		super();
+		m_file = f;
+		m_entries = new LinkedHashMap<String,Entry>();
+	}
+
+	/**
+	 * Loads a manifest from a file. If the file does not exist or is not a
+	 * manifest, an empty manifest is returned.
+	 * @param f The file
+	 * @return The manifest
+	 */
+	public static BuildManifest load(File f)
+	{
+		BuildManifest manifest = new BuildManifest(f);
+		Scanner scan;
+		try
+		{
+			scan = new Scanner(f, "UTF-8");
+		}
+		catch (FileNotFoundException e)
+		{
+			return manifest;
+		}
+		if (!scan.hasNextLine() || !scan.nextLine().equals(s_header))
+		{
+			scan.close();
+			return manifest;
+		}
+		while (scan.hasNextLine())
+		{
+			String[] parts = scan.nextLine().split("\t", -1);
+			if (parts.length < 5)
+			{
+				continue;
+			}
+			Set<String> features = new TreeSet<String>();
+			for (String feature : parts[4].split(","))
+			{
+				if (!feature.isEmpty())
+				{
+					features.add(feature);
+				}
+			}
+			manifest.m_entries.put(parts[0], new Entry(parts[1], parts[2], parts[3], features));
+		}
+		scan.close();
+		return manifest;
+	}
+
+	/**
+	 * Checks whether the LaTeX file of a chapter is up to date: the source
+	 * of the chapter and the configuration that applies to it must have the
+	 * same digests as when the file was generated, and the file itself must
+	 * not have been modified since.
+	 * @param chapter The path of the chapter
+	 * @param source_hash The digest of the chapter's current source
+	 * @param fingerprint The digest of the current configuration for this
+	 * chapter
+	 * @param latex The LaTeX file generated for this chapter
+	 * @return true if the chapter does not need to be converted again
+	 */
+	public synchronized boolean isUpToDate(String chapter, String source_hash, String fingerprint, File latex)
+	{
+		Entry e = m_entries.get(chapter);
+		if (e == null || !e.m_sourceHash.equals(source_hash) || !e.m_fingerprint.equals(fingerprint) || !latex.exists())
+		{
+			return false;
+		}
+		try
+		{
+			return e.m_latexHash.equals(FileHelper.digest(latex));
+		}
+		catch (IOException ex)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Records the digests of a chapter
+	 * @param chapter The path of the chapter
+	 * @param source_hash The digest of the chapter's source
+	 * @param fingerprint The digest of the configuration the chapter was
+	 * converted with
+	 * @param latex_hash The digest of the LaTeX file generated for it
+	 * @param features The features of the chapter that have an influence
+	 * on the preamble
+	 */
+	public synchronized void put(String chapter, String source_hash, String fingerprint, String latex_hash, Set<String> features)
+	{
+		m_entries.put(chapter, new Entry(source_hash, fingerprint, latex_hash, features));
+	}
+
+	/**
+	 * Gets the digest of the source recorded for a chapter
+	 * @param chapter The path of the chapter
+	 * @return The digest, or {@code null} if the chapter is not in the
+	 * manifest
+	 */
+	public synchronized String getSourceHash(String chapter)
+	{
+		Entry e = m_entries.get(chapter);
+		if (e == null)
+		{
+			return null;
+		}
+		return e.m_sourceHash;
+	}
+
+	/**
+	 * Gets the features recorded for a chapter
+	 * @param chapter The path of the chapter
+	 * @return The features, or {@code null} if the chapter is not in the
+	 * manifest
+	 */
+	public synchronized Set<String> getFeatures(String chapter)
+	{
+		Entry e = m_entries.get(chapter);
+		if (e == null)
+		{
+			return null;
+		}
+		return e.m_features;
+	}
+
+	/**
+	 * Removes the entries of all chapters that are not in a collection
+	 * @param chapters The paths of the chapters to keep
+	 */
+	public synchronized void retainAll(Collection<String> chapters)
+	{
+		Iterator<String> it = m_entries.keySet().iterator();
+		while (it.hasNext())
+		{
+			if (!chapters.contains(it.next()))
+			{
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes the manifest to its file. The contents are first written to
+	 * a temporary file which then replaces the manifest, so that an
+	 * interrupted run never leaves a truncated manifest behind.
+	 * @throws IOException If the manifest cannot be written
+	 */
+	public synchronized void save() throws IOException
+	{
+		StringBuilder out = new StringBuilder();
+		out.append(s_header).append("\n");
+		for (Map.Entry<String,Entry> e : m_entries.entrySet())
+		{
+			out.append(e.getKey()).append("\t").append(e.getValue().m_sourceHash).append("\t").append(e.getValue().m_fingerprint).append("\t").append(e.getValue().m_latexHash).append("\t");
+			boolean first = true;
+			for (String feature : e.getValue().m_features)
+			{
+				if (!first)
+				{
+					out.append(",");
+				}
+				first = false;
+				out.append(feature);
+			}
+			out.append("\n");
+		}
+		FileHelper.writeAtomically(m_file, out.toString().getBytes("UTF-8"));
+	}
+
+	/**
+	 * The digests recorded for a chapter
+	 */
+	protected static class Entry
+	{
+		protected final String m_sourceHash;
+
+		protected final String m_fingerprint;
+
+		protected final String m_latexHash;
+
+		protected final Set<String> m_features;
+
+		public Entry(String source_hash, String fingerprint, String latex_hash, Set<String> features)
+		{
+			super();
+			m_sourceHash = source_hash;
+			m_fingerprint = fingerprint;
+			m_latexHash = latex_hash;
+			m_features = features;
+		}
+	}
+}
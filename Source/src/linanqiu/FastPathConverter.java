@@ -0,0 +1,578 @@
+package linanqiu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ca.uqac.lif.labpal.CommandRunner;
+
+/**
+ * Converts a small subset of Markdown to LaTeX without calling pandoc:
+ * paragraphs of plain text, headings, emphasis, inline code, flat bullet
+ * lists, links and inline images. The output is meant to be the same, byte
+ * for byte, as what pandoc produces with {@code --wrap=preserve}; any
+ * document that uses something outside of this subset is refused, and must
+ * be converted by pandoc instead.
+ * <p>
+ * Since pandoc's output changes from one version to the next, each
+ * construct of the subset comes with a probe document. Before being used,
+ * the converter is calibrated: the probes are converted by the installed
+ * pandoc (once, the outputs being recorded in a file), and the constructs
+ * whose probe is not converted exactly the same way by this class are
+ * disabled.
+ */
+public class FastPathConverter
+{
+	/**
+	 * Construct: paragraphs of plain text. Without it, no document is
+	 * accepted.
+	 */
+	public static final String PARAGRAPHS = "paragraphs";
+
+	/**
+	 * Construct: ATX headings of level 1 to 5
+	 */
+	public static final String HEADINGS = "headings";
+
+	/**
+	 * Construct: emphasis and strong emphasis with asterisks
+	 */
+	public static final String EMPHASIS = "emphasis";
+
+	/**
+	 * Construct: inline code
+	 */
+	public static final String CODE = "code";
+
+	/**
+	 * Construct: tight bullet lists with one line per item
+	 */
+	public static final String LISTS = "lists";
+
+	/**
+	 * Construct: inline links
+	 */
+	public static final String LINKS = "links";
+
+	/**
+	 * Construct: images in the middle of a paragraph
+	 */
+	public static final String IMAGES = "images";
+
+	/**
+	 * The beginning of the lines that separate the probes in the file of
+	 * recorded outputs
+	 */
+	protected static final String s_probeMarker = "%% probe ";
+
+	/**
+	 * The probe document of each construct
+	 */
+	protected static final Map<String,String> s_probes = new LinkedHashMap<String,String>();
+
+	/**
+	 * The abbreviations after which pandoc puts a non-breaking space
+	 */
+	protected static final Set<String> s_abbreviations = new HashSet<String>(Arrays.asList(
+			"Mr.", "Mrs.", "Ms.", "Capt.", "Dr.", "Prof.", "Gen.", "Gov.", "e.g.", "i.e.", "Sgt.", "St.", "vol.", "vs.", "Sen.", "Rep.", "Pres.", "Hon.", "Rev.", "Ph.D.", "M.D.", "M.A.", "p.", "pp.", "ch.", "sec.", "cf.", "cp."));
+
+	/**
+	 * The LaTeX commands for each level of heading
+	 */
+	protected static final String[] s_sections = new String[] {"section", "subsection", "subsubsection", "paragraph", "subparagraph"};
+
+	/**
+	 * Matches the beginning of a line that could start a block other than a
+	 * paragraph: list items, quotes, tables, definition lists, HTML, setext
+	 * heading underlines, etc.
+	 */
+	protected static final Pattern s_blockStart = Pattern.compile("^([#:~>|=<\\-]|[*+]\\s|[0-9]+[.)](\\s|$)|[A-Za-z][.)](\\s|$)|[ivxlcdmIVXLCDM]+[.)](\\s|$)|\\([0-9A-Za-z@#]+\\))");
+
+	/**
+	 * Matches a heading the converter accepts
+	 */
+	protected static final Pattern s_heading = Pattern.compile("^(#{1,5}) ([A-Za-z][A-Za-z0-9]*( [A-Za-z0-9]+)*)$");
+
+	/**
+	 * Matches the URL of a link or an image the converter accepts
+	 */
+	protected static final Pattern s_url = Pattern.compile("[A-Za-z0-9:/.\\-]+");
+
+	/**
+	 * Matches the contents of inline code the converter accepts
+	 */
+	protected static final Pattern s_code = Pattern.compile("[A-Za-z0-9.,=()]+");
+
+	static
+	{
+		s_probes.put(PARAGRAPHS, "First line of text, with punctuation: commas; colons!\nA second line (in parentheses) with 42 numbers and a - dash.\n\nAnother paragraph with accents: \u00e9t\u00e9, na\u00efve.\n");
+		s_probes.put(HEADINGS, "# Alpha Beta\n\nText.\n\n## Gamma\n\n### Delta 2\n\n#### Epsilon\n\n##### Zeta\nText right after.\n");
+		s_probes.put(EMPHASIS, "Some *emphasized* and **strong** words, and a*b*c.\n");
+		s_probes.put(CODE, "Call `foo(x)` and `bar`.\n");
+		s_probes.put(LISTS, "Text.\n\n* Alpha\n* Beta gamma\n\nText.\n\n- Delta\n- Epsilon\n");
+		s_probes.put(LINKS, "See [the manual](https://example.com/manual) and [chapter two](ch02/README.md).\n");
+		s_probes.put(IMAGES, "An icon ![icon](img/icon.png) in the text.\n");
+	}
+
+	/**
+	 * The constructs that are enabled
+	 */
+	protected final Set<String> m_enabled;
+
+	/**
+	 * Creates a converter with all constructs enabled
+	 */
+	public FastPathConverter()
+	{
+		super();
+		m_enabled = new TreeSet<String>(s_probes.keySet());
+	}
+
+	/**
+	 * Gets the constructs that are enabled
+	 * @return The constructs
+	 */
+	public Set<String> getEnabled()
+	{
+		return m_enabled;
+	}
+
+	/**
+	 * Calibrates the converter against pandoc. The probes are converted by
+	 * pandoc, unless their output is already recorded, and only the
+	 * constructs whose probe this class converts to the same LaTeX are left
+	 * enabled.
+	 * @param command The command line that calls pandoc on its standard
+	 * input
+	 * @param recorded The file where the outputs of pandoc are recorded.
+	 * Its name should depend on the version of pandoc and on the options
+	 * it is called with.
+	 * @throws IOException If pandoc cannot be run, or if the recorded
+	 * outputs cannot be written
+	 */
+	public void calibrate(String[] command, File recorded) throws IOException
+	{
+		Map<String,String> outputs = loadRecorded(recorded);
+		boolean modified = false;
+		for (Map.Entry<String,String> probe : s_probes.entrySet())
+		{
+			if (outputs.containsKey(probe.getKey()))
+			{
+				continue;
+			}
+			CommandRunner runner = new CommandRunner(command, probe.getValue());
+			runner.run();
+			if (runner.getErrorCode() != 0)
+			{
+				throw new IOException("pandoc exited with code " + runner.getErrorCode() + " when converting the " + probe.getKey() + " probe");
+			}
+			outputs.put(probe.getKey(), normalize(runner.getString()));
+			modified = true;
+		}
+		if (modified)
+		{
+			saveRecorded(recorded, outputs);
+		}
+		FastPathConverter reference = new FastPathConverter();
+		m_enabled.clear();
+		for (Map.Entry<String,String> probe : s_probes.entrySet())
+		{
+			String latex = reference.convert(probe.getValue());
+			if (latex != null && normalize(latex).equals(outputs.get(probe.getKey())))
+			{
+				m_enabled.add(probe.getKey());
+			}
+		}
+		if (!m_enabled.contains(PARAGRAPHS))
+		{
+			m_enabled.clear();
+		}
+	}
+
+	/**
+	 * Reads the outputs of pandoc recorded for the probes
+	 * @param recorded The file
+	 * @return A map from each construct to the output of its probe; the map
+	 * is empty if the file does not exist
+	 * @throws IOException If the file cannot be read
+	 */
+	protected static Map<String,String> loadRecorded(File recorded) throws IOException
+	{
+		Map<String,String> outputs = new LinkedHashMap<String,String>();
+		if (!recorded.exists())
+		{
+			return outputs;
+		}
+		String name = null;
+		StringBuilder output = null;
+		for (String line : new String(Files.readAllBytes(recorded.toPath()), StandardCharsets.UTF_8).split("\n"))
+		{
+			if (line.startsWith(s_probeMarker))
+			{
+				if (name != null)
+				{
+					outputs.put(name, output.toString());
+				}
+				name = line.substring(s_probeMarker.length());
+				output = new StringBuilder();
+			}
+			else if (name != null)
+			{
+				output.append(line).append("\n");
+			}
+		}
+		if (name != null)
+		{
+			outputs.put(name, output.toString());
+		}
+		return outputs;
+	}
+
+	/**
+	 * Writes the outputs of pandoc recorded for the probes
+	 * @param recorded The file
+	 * @param outputs A map from each construct to the output of its probe
+	 * @throws IOException If the file cannot be written
+	 */
+	protected static void saveRecorded(File recorded, Map<String,String> outputs) throws IOException
+	{
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String,String> e : outputs.entrySet())
+		{
+			out.append(s_probeMarker).append(e.getKey()).append("\n").append(e.getValue());
+		}
+		recorded.getAbsoluteFile().getParentFile().mkdirs();
+		Files.write(recorded.toPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Normalizes an output so that it ends with exactly one newline
+	 * @param latex The output
+	 * @return The normalized output
+	 */
+	protected static String normalize(String latex)
+	{
+		int end = latex.length();
+		while (end > 0 && latex.charAt(end - 1) == '\n')
+		{
+			end--;
+		}
+		return latex.substring(0, end) + "\n";
+	}
+
+	/**
+	 * Converts a Markdown document to LaTeX
+	 * @param markdown The document
+	 * @return The LaTeX code, or {@code null} if the document uses
+	 * something this converter does not handle
+	 */
+	public String convert(String markdown)
+	{
+		if (!m_enabled.contains(PARAGRAPHS) || markdown.indexOf('\t') >= 0 || markdown.indexOf('\r') >= 0)
+		{
+			return null;
+		}
+		List<String> blocks = new ArrayList<String>();
+		Set<String> ids = new HashSet<String>();
+		String[] lines = markdown.split("\n");
+		boolean previous_list = false;
+		int start = 0;
+		while (start < lines.length)
+		{
+			if (lines[start].trim().isEmpty())
+			{
+				start++;
+				continue;
+			}
+			int end = start;
+			while (end < lines.length && !lines[end].trim().isEmpty())
+			{
+				end++;
+			}
+			boolean list = isListItem(lines[start]);
+			if (list && previous_list)
+			{
+				// Two lists separated by a blank line form a single loose list
+				return null;
+			}
+			if (!convertLines(lines, start, end, blocks, ids))
+			{
+				return null;
+			}
+			previous_list = list;
+			start = end;
+		}
+		if (blocks.isEmpty())
+		{
+			return null;
+		}
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < blocks.size(); i++)
+		{
+			if (i > 0)
+			{
+				out.append("\n\n");
+			}
+			out.append(blocks.get(i));
+		}
+		out.append("\n");
+		return out.toString();
+	}
+
+	/**
+	 * Converts a group of consecutive non-blank lines
+	 * @param lines The lines of the document
+	 * @param start The index of the first line of the group
+	 * @param end The index of the line after the group
+	 * @param blocks The list where the converted blocks are added
+	 * @param ids The identifiers of the headings found so far
+	 * @return false if the lines use something this converter does not
+	 * handle
+	 */
+	protected boolean convertLines(String[] lines, int start, int end, List<String> blocks, Set<String> ids)
+	{
+		if (lines[start].startsWith("#"))
+		{
+			Matcher mat = s_heading.matcher(lines[start]);
+			if (!m_enabled.contains(HEADINGS) || !mat.matches())
+			{
+				return false;
+			}
+			String id = mat.group(2).toLowerCase().replace(' ', '-');
+			if (!ids.add(id))
+			{
+				// pandoc would add a suffix to the identifier
+				return false;
+			}
+			blocks.add("\\" + s_sections[mat.group(1).length() - 1] + "{" + mat.group(2) + "}\\label{" + id + "}");
+			start++;
+			if (start == end)
+			{
+				return true;
+			}
+		}
+		if (isListItem(lines[start]))
+		{
+			if (!m_enabled.contains(LISTS))
+			{
+				return false;
+			}
+			char marker = lines[start].charAt(0);
+			StringBuilder out = new StringBuilder();
+			out.append("\\begin{itemize}\n\\tightlist\n");
+			for (int i = start; i < end; i++)
+			{
+				if (lines[i].charAt(0) != marker || !isListItem(lines[i]) || s_blockStart.matcher(lines[i].substring(2)).find())
+				{
+					return false;
+				}
+				String item = convertInline(lines[i].substring(2));
+				if (item == null)
+				{
+					return false;
+				}
+				out.append("\\item\n  ").append(item).append("\n");
+			}
+			out.append("\\end{itemize}");
+			blocks.add(out.toString());
+			return true;
+		}
+		if (end - start == 1 && lines[start].startsWith("![") && lines[start].endsWith(")") && lines[start].indexOf("](") == lines[start].lastIndexOf("]("))
+		{
+			// An image alone in its paragraph is a figure
+			return false;
+		}
+		StringBuilder out = new StringBuilder();
+		for (int i = start; i < end; i++)
+		{
+			if (s_blockStart.matcher(lines[i]).find())
+			{
+				return false;
+			}
+			String line = convertInline(lines[i]);
+			if (line == null)
+			{
+				return false;
+			}
+			if (i > start)
+			{
+				out.append("\n");
+			}
+			out.append(line);
+		}
+		blocks.add(out.toString());
+		return true;
+	}
+
+	/**
+	 * Checks whether a line is an item of a bullet list
+	 * @param line The line
+	 * @return true if the line is a list item
+	 */
+	protected static boolean isListItem(String line)
+	{
+		return line.length() > 2 && (line.charAt(0) == '*' || line.charAt(0) == '-' || line.charAt(0) == '+') && line.charAt(1) == ' ';
+	}
+
+	/**
+	 * Converts a line of text, with its inline markup
+	 * @param text The text
+	 * @return The LaTeX code, or {@code null} if the text uses something
+	 * this converter does not handle
+	 */
+	protected String convertInline(String text)
+	{
+		if (!isPlainSpacing(text) || hasAbbreviation(text))
+		{
+			return null;
+		}
+		StringBuilder out = new StringBuilder();
+		int i = 0;
+		while (i < text.length())
+		{
+			char c = text.charAt(i);
+			if (c == '*')
+			{
+				boolean strong = text.startsWith("**", i);
+				String delimiter = strong ? "**" : "*";
+				int close = text.indexOf(delimiter, i + delimiter.length());
+				if (!m_enabled.contains(EMPHASIS) || close < 0 || text.startsWith("*", close + delimiter.length()))
+				{
+					return null;
+				}
+				String inner = convertText(text.substring(i + delimiter.length(), close));
+				if (inner == null)
+				{
+					return null;
+				}
+				out.append(strong ? "\\textbf{" : "\\emph{").append(inner).append("}");
+				i = close + delimiter.length();
+			}
+			else if (c == '`')
+			{
+				int close = text.indexOf('`', i + 1);
+				if (!m_enabled.contains(CODE) || close < 0 || !s_code.matcher(text.substring(i + 1, close)).matches())
+				{
+					return null;
+				}
+				out.append("\\texttt{").append(text.substring(i + 1, close)).append("}");
+				i = close + 1;
+			}
+			else if (c == '[' || (c == '!' && text.startsWith("![", i)))
+			{
+				boolean image = c == '!';
+				int open = image ? i + 1 : i;
+				int middle = text.indexOf("](", open);
+				int close = middle < 0 ? -1 : text.indexOf(')', middle);
+				if (close < 0 || !m_enabled.contains(image ? IMAGES : LINKS))
+				{
+					return null;
+				}
+				String label = convertText(text.substring(open + 1, middle));
+				String url = text.substring(middle + 2, close);
+				if (label == null || !s_url.matcher(url).matches() || label.equals(url))
+				{
+					return null;
+				}
+				if (image)
+				{
+					out.append("\\includegraphics{").append(url).append("}");
+				}
+				else
+				{
+					out.append("\\href{").append(url).append("}{").append(label).append("}");
+				}
+				i = close + 1;
+			}
+			else if (isTextChar(c))
+			{
+				out.append(c);
+				i++;
+			}
+			else
+			{
+				return null;
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Converts text that contains no markup at all
+	 * @param text The text
+	 * @return The text itself, or {@code null} if it contains a character
+	 * this converter does not handle
+	 */
+	protected static String convertText(String text)
+	{
+		if (!isPlainSpacing(text))
+		{
+			return null;
+		}
+		for (int i = 0; i < text.length(); i++)
+		{
+			if (!isTextChar(text.charAt(i)))
+			{
+				return null;
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * Checks that a piece of text is not empty, has no leading, trailing or
+	 * repeated spaces, and none of the sequences pandoc turns into
+	 * typographic symbols
+	 * @param text The text
+	 * @return true if the text passes these checks
+	 */
+	protected static boolean isPlainSpacing(String text)
+	{
+		return !text.isEmpty() && text.charAt(0) != ' ' && text.charAt(text.length() - 1) != ' ' && !text.contains("  ") && !text.contains("--") && !text.contains("..");
+	}
+
+	/**
+	 * Checks whether a piece of text contains an abbreviation, which pandoc
+	 * follows by a non-breaking space
+	 * @param text The text
+	 * @return true if the text contains an abbreviation, or a word that could
+	 * be mistaken for one
+	 */
+	protected static boolean hasAbbreviation(String text)
+	{
+		for (String word : text.split(" "))
+		{
+			word = word.replaceAll("^[(*\\[]+", "");
+			if (s_abbreviations.contains(word) || word.matches("[A-Za-z]\\.") || word.matches("([A-Za-z]+\\.){2,}"))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a character is copied as is by pandoc
+	 * @param c The character
+	 * @return true if the character is copied as is
+	 */
+	protected static boolean isTextChar(char c)
+	{
+		if (Character.isLetterOrDigit(c))
+		{
+			return c < 0x2000;
+		}
+		return " .,;:!?()/=+-".indexOf(c) >= 0;
+	}
+}
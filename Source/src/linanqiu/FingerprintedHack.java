@@ -0,0 +1,19 @@
+package linanqiu;
+
+/**
+ * A hack whose effect on a file depends on some configuration, such as a
+ * list of rules. The fingerprint of a hack is part of the fingerprint of
+ * each chapter, so that an incremental build converts a chapter again when
+ * the configuration that applies to it changes.
+ */
+public interface FingerprintedHack
+{
+	/**
+	 * Gets a string describing the configuration that applies to a file
+	 * @param filename The name of the file
+	 * @return The string. Two configurations that may modify the file
+	 * differently must give different strings. The empty string means that
+	 * the hack leaves the file untouched.
+	 */
+	public String getFingerprint(String filename);
+}
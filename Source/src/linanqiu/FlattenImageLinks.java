@@ -1,9 +1,12 @@
 package linanqiu;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Makes all image links that contain paths links with only the filename
  */
-public class FlattenImageLinks implements LatexHack 
+public class FlattenImageLinks implements RuleBasedHack 
 {
 	public static FlattenImageLinks instance = new FlattenImageLinks();
 	
@@ -18,4 +21,18 @@ public class FlattenImageLinks implements LatexHack
 		contents = contents.replaceAll("\\\\includegraphics\\{\\.\\./", "\\\\includegraphics{");
 		return contents;
 	}
+
+	@Override
+	public List<Replacement> getReplacements(String filename)
+	{
+		List<Replacement> rules = new ArrayList<Replacement>(1);
+		rules.add(new Replacement("\\includegraphics{../", "\\includegraphics{"));
+		return rules;
+	}
+
+	@Override
+	public boolean isFileSpecific()
+	{
+		return false;
+	}
 }
@@ -0,0 +1,459 @@
+package linanqiu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies a sequence of literal replacements in a single pass over a
+ * string, with the same result as applying them one after the other.
+ * <p>
+ * The text is scanned for the patterns of all the replacements at once,
+ * with an Aho-Corasick automaton; at the leftmost position where a pattern
+ * matches, the earliest replacement whose pattern matches there wins. When
+ * a replacement rewrites the output of a previous one, the two are
+ * composed: the output of the first is rewritten in advance. This is only
+ * equivalent to the sequential application when the replacements do not
+ * interfere in other ways, for example when the pattern of a replacement
+ * straddles the output of a previous one and the text around it.
+ * {@link #add(Replacement)} refuses the replacements for which this cannot
+ * be guaranteed; they must then be applied in another pass.
+ * <p>
+ * A regex replacement, or a literal replacement of the empty string,
+ * cannot be fused with other replacements; it is accepted only as the
+ * single replacement of a pass.
+ */
+public class FusedReplacements
+{
+	/**
+	 * The patterns looked for in the original text, by order of priority
+	 */
+	protected final List<String> m_patterns;
+
+	/**
+	 * The text each pattern is replaced with, once all the replacements
+	 * have been applied to it
+	 */
+	protected final List<String> m_outputs;
+
+	/**
+	 * The replacements that take part in the output of each pattern, whose
+	 * counters are incremented when the pattern matches
+	 */
+	protected final List<List<Replacement>> m_contributors;
+
+	/**
+	 * The index of each pattern in {@link #m_patterns}
+	 */
+	protected final Map<String,Integer> m_indices;
+
+	/**
+	 * The indices of the patterns, by their first character
+	 */
+	protected final Map<Character,List<Integer>> m_patternsByFirst;
+
+	/**
+	 * The indices of the outputs, by their first character. Since outputs
+	 * are rewritten as replacements are added, an output may also be listed
+	 * under a character it no longer starts with.
+	 */
+	protected final Map<Character,List<Integer>> m_outputsByFirst;
+
+	/**
+	 * The indices of the outputs, by each of the characters they contain.
+	 * As above, this may list an output under characters it no longer
+	 * contains.
+	 */
+	protected final Map<Character,Set<Integer>> m_outputsByChar;
+
+	/**
+	 * Whether one of the outputs is the empty string
+	 */
+	protected boolean m_emptyOutput = false;
+
+	/**
+	 * The replacement of this pass, if it is one that cannot be fused
+	 */
+	protected Replacement m_single = null;
+
+	/**
+	 * The root of the automaton, created when the replacements are first
+	 * applied
+	 */
+	protected Node m_root = null;
+
+	/**
+	 * Creates an empty set of fused replacements
+	 */
+	public FusedReplacements()
+	{
+		super();
+		m_patterns = new ArrayList<String>();
+		m_outputs = new ArrayList<String>();
+		m_contributors = new ArrayList<List<Replacement>>();
+		m_indices = new HashMap<String,Integer>();
+		m_patternsByFirst = new HashMap<Character,List<Integer>>();
+		m_outputsByFirst = new HashMap<Character,List<Integer>>();
+		m_outputsByChar = new HashMap<Character,Set<Integer>>();
+	}
+
+	/**
+	 * Adds a replacement, to be applied after those already added
+	 * @param r The replacement
+	 * @return true if the replacement has been added, false if it cannot be
+	 * applied in the same pass as the others
+	 */
+	public synchronized boolean add(Replacement r)
+	{
+		String find = r.getFind();
+		if (m_root != null || m_single != null)
+		{
+			return false;
+		}
+		if (!r.isLiteral() || find.isEmpty())
+		{
+			if (!m_patterns.isEmpty())
+			{
+				return false;
+			}
+			m_single = r;
+			return true;
+		}
+		if (m_emptyOutput)
+		{
+			// Removing text can bring together the two halves of a pattern
+			return false;
+		}
+		// Only the patterns and outputs that share a character with the new
+		// pattern can interfere with it
+		Set<Character> inner_chars = new HashSet<Character>();
+		for (int i = 1; i < find.length(); i++)
+		{
+			inner_chars.add(find.charAt(i));
+		}
+		for (Character c : inner_chars)
+		{
+			for (int i : get(m_patternsByFirst, c))
+			{
+				// The new pattern must not start before an earlier one it overlaps
+				String pattern = m_patterns.get(i);
+				if (find.indexOf(pattern, 1) >= 0 || overlaps(find, pattern))
+				{
+					return false;
+				}
+			}
+		}
+		inner_chars.add(find.charAt(0));
+		for (Character c : inner_chars)
+		{
+			for (int i : get(m_outputsByFirst, c))
+			{
+				// The new pattern must not contain an earlier output, or start in
+				// the text before it
+				String output = m_outputs.get(i);
+				if ((find.length() > output.length() && find.contains(output)) || overlaps(find, output))
+				{
+					return false;
+				}
+			}
+		}
+		Set<Integer> containing = m_outputsByChar.get(find.charAt(0));
+		List<Integer> composed = new ArrayList<Integer>();
+		if (containing != null)
+		{
+			for (int i : containing)
+			{
+				// The new pattern must not start in an earlier output and end
+				// in the text after it
+				String output = m_outputs.get(i);
+				if (overlaps(output, find))
+				{
+					return false;
+				}
+				if (output.contains(find))
+				{
+					composed.add(i);
+				}
+			}
+		}
+		for (int i : composed)
+		{
+			setOutput(i, m_outputs.get(i).replace(find, r.getReplace()));
+			m_contributors.get(i).add(r);
+		}
+		if (!m_indices.containsKey(find))
+		{
+			int i = m_patterns.size();
+			m_indices.put(find, i);
+			m_patterns.add(find);
+			get(m_patternsByFirst, find.charAt(0)).add(i);
+			m_outputs.add(null);
+			setOutput(i, r.getReplace());
+			List<Replacement> contributors = new ArrayList<Replacement>(1);
+			contributors.add(r);
+			m_contributors.add(contributors);
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the output of a pattern and updates the indices of outputs
+	 * @param i The index of the pattern
+	 * @param output The output
+	 */
+	protected void setOutput(int i, String output)
+	{
+		m_outputs.set(i, output);
+		if (output.isEmpty())
+		{
+			m_emptyOutput = true;
+			return;
+		}
+		List<Integer> by_first = get(m_outputsByFirst, output.charAt(0));
+		if (by_first.isEmpty() || by_first.get(by_first.size() - 1) != i)
+		{
+			by_first.add(i);
+		}
+		for (int j = 0; j < output.length(); j++)
+		{
+			Set<Integer> by_char = m_outputsByChar.get(output.charAt(j));
+			if (by_char == null)
+			{
+				by_char = new HashSet<Integer>();
+				m_outputsByChar.put(output.charAt(j), by_char);
+			}
+			by_char.add(i);
+		}
+	}
+
+	/**
+	 * Gets the list associated to a character in an index, creating it if
+	 * needed
+	 * @param index The index
+	 * @param c The character
+	 * @return The list
+	 */
+	protected static List<Integer> get(Map<Character,List<Integer>> index, char c)
+	{
+		List<Integer> list = index.get(c);
+		if (list == null)
+		{
+			list = new ArrayList<Integer>();
+			index.put(c, list);
+		}
+		return list;
+	}
+
+	/**
+	 * Checks whether a proper suffix of a string is a proper prefix of
+	 * another one
+	 * @param left The first string
+	 * @param right The second string
+	 * @return true if the end of the first string can overlap the beginning
+	 * of the second
+	 */
+	protected static boolean overlaps(String left, String right)
+	{
+		char first = right.charAt(0);
+		int from = Math.max(1, left.length() - right.length() + 1);
+		for (int pos = left.indexOf(first, from); pos >= 0; pos = left.indexOf(first, pos + 1))
+		{
+			if (left.regionMatches(pos, right, 0, left.length() - pos))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Applies the replacements to a string
+	 * @param s The string
+	 * @return The string with the replacements applied
+	 */
+	public String apply(String s)
+	{
+		if (m_single != null)
+		{
+			return m_single.apply(s);
+		}
+		Node root = getAutomaton();
+		if (root == null)
+		{
+			return s;
+		}
+		StringBuilder out = null;
+		int last = 0, pos = last;
+		Node state = root;
+		int best_start = -1, best_pattern = -1;
+		while (true)
+		{
+			boolean end = pos >= s.length();
+			if (!end)
+			{
+				state = state.step(s.charAt(pos));
+				for (Node n = state.m_pattern >= 0 ? state : state.m_output; n != null; n = n.m_output)
+				{
+					int start = pos - n.m_depth + 1;
+					if (best_start < 0 || start < best_start || (start == best_start && n.m_pattern < best_pattern))
+					{
+						best_start = start;
+						best_pattern = n.m_pattern;
+					}
+				}
+			}
+			// No match found later can start at or before best_start
+			if (best_start >= 0 && (end || pos - state.m_depth + 1 > best_start))
+			{
+				if (out == null)
+				{
+					out = new StringBuilder(s.length() + 64);
+				}
+				out.append(s, last, best_start).append(m_outputs.get(best_pattern));
+				for (Replacement r : m_contributors.get(best_pattern))
+				{
+					r.hit();
+				}
+				last = best_start + m_patterns.get(best_pattern).length();
+				pos = last;
+				state = root;
+				best_start = -1;
+				continue;
+			}
+			if (end)
+			{
+				break;
+			}
+			pos++;
+		}
+		if (out == null)
+		{
+			return s;
+		}
+		out.append(s, last, s.length());
+		return out.toString();
+	}
+
+	/**
+	 * Gets the automaton recognizing all the patterns. Once it has been
+	 * created, no replacement can be added.
+	 * @return The root of the automaton, or {@code null} if there are no
+	 * replacements
+	 */
+	protected synchronized Node getAutomaton()
+	{
+		if (m_root == null && !m_patterns.isEmpty())
+		{
+			Node root = new Node(0);
+			for (int i = 0; i < m_patterns.size(); i++)
+			{
+				String pattern = m_patterns.get(i);
+				Node n = root;
+				for (int j = 0; j < pattern.length(); j++)
+				{
+					Node next = n.m_next.get(pattern.charAt(j));
+					if (next == null)
+					{
+						next = new Node(j + 1);
+						n.m_next.put(pattern.charAt(j), next);
+					}
+					n = next;
+				}
+				n.m_pattern = i;
+			}
+			// Compute the failure and output links, breadth first
+			LinkedList<Node> queue = new LinkedList<Node>();
+			for (Node child : root.m_next.values())
+			{
+				child.m_fail = root;
+				queue.add(child);
+			}
+			root.m_fail = root;
+			while (!queue.isEmpty())
+			{
+				Node n = queue.removeFirst();
+				for (Map.Entry<Character,Node> e : n.m_next.entrySet())
+				{
+					Node child = e.getValue();
+					Node f = n.m_fail;
+					while (f != root && !f.m_next.containsKey(e.getKey()))
+					{
+						f = f.m_fail;
+					}
+					Node target = f.m_next.get(e.getKey());
+					child.m_fail = (target == null || target == child) ? root : target;
+					child.m_output = child.m_fail.m_pattern >= 0 ? child.m_fail : child.m_fail.m_output;
+					queue.add(child);
+				}
+			}
+			m_root = root;
+		}
+		return m_root;
+	}
+
+	/**
+	 * A state of the Aho-Corasick automaton
+	 */
+	protected static class Node
+	{
+		/**
+		 * The transitions of the trie
+		 */
+		protected final Map<Character,Node> m_next = new HashMap<Character,Node>();
+
+		/**
+		 * The length of the string that leads to this state
+		 */
+		protected final int m_depth;
+
+		/**
+		 * The state for the longest proper suffix of this state's string
+		 * that is in the trie
+		 */
+		protected Node m_fail = null;
+
+		/**
+		 * The nearest state, following the failure links, that ends a
+		 * pattern
+		 */
+		protected Node m_output = null;
+
+		/**
+		 * The index of the pattern ending at this state, or -1
+		 */
+		protected int m_pattern = -1;
+
+		public Node(int depth)
+		{
+			super();
+			m_depth = depth;
+		}
+
+		/**
+		 * Gets the state reached from this state on a character
+		 * @param c The character
+		 * @return The next state
+		 */
+		protected Node step(char c)
+		{
+			Node n = this;
+			while (true)
+			{
+				Node next = n.m_next.get(c);
+				if (next != null)
+				{
+					return next;
+				}
+				if (n.m_depth == 0)
+				{
+					return n;
+				}
+				n = n.m_fail;
+			}
+		}
+	}
+}
@@ -20,23 +20,43 @@ package linanqiu;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import ca.uqac.lif.labpal.CliParser;
 import ca.uqac.lif.labpal.CliParser.Argument;
 import ca.uqac.lif.labpal.CliParser.ArgumentMap;
+import ca.uqac.lif.labpal.CommandResult;
 import ca.uqac.lif.labpal.CommandRunner;
 import ca.uqac.lif.labpal.FileHelper;
+import ca.uqac.lif.labpal.GitState;
+import ca.uqac.lif.labpal.ThreadHelper;
+import ca.uqac.lif.labpal.TreeSync;
 
 /**
  * Takes a Gitbook directory and a output directory, and converts all markdowns
@@ -53,14 +73,14 @@ public class GitbookToPandoc
 	protected static final String VERSION_STRING = "0.2";
 	
 	/**
-	 * The level of chapters in the summary
-	 */
-	protected static final int CHAPTER = 1;
-	
-	/**
-	 * The level of subchapters in the summary
+	 * Now gitbook demands that even subchapters are titled using #Title (H1),
+	 * hence if we convert naively using pandoc, each subchapter will become
+	 * <tt>\section</tt>, which is screwed up. So we have to push each section in the
+	 * subchapters down by one. We do that by replacing <tt>section{</tt> with
+	 * <tt>subsection{</tt>, after the LaTeX hacks, in the same pass as their
+	 * replacements.
 	 */
-	protected static final int SUBCHAPTER = 2;
+	protected static final List<Replacement> s_shift = Collections.singletonList(new Replacement("section{", "subsection{"));
 	
 	/**
 	 * The path to the pandoc executable. If pandoc is in the path, then
@@ -68,6 +88,11 @@ public class GitbookToPandoc
 	 */
 	public static final String s_pandocPath = "pandoc";
 	
+	/**
+	 * The options passed to pandoc when converting a chapter
+	 */
+	protected static final String[] s_pandocOptions = new String[] {"--wrap=preserve"};
+	
 	/**
 	 * The name of the file containing the summary in the directory
 	 * structure
@@ -85,29 +110,265 @@ public class GitbookToPandoc
 	public static final String s_headerFilename = "body.tex";
 	
 	/**
-	 * The name of the big Markdown file
+	 * The name of the generated header file with all Pandoc declarations
 	 */
-	public static final String s_bigFilenameMarkdown = "all.temp.md";
+	public static final String s_pandocIncludeFilename = "pandoc.inc.tex";
 	
 	/**
-	 * The name of the big LaTeX file
+	 * The name of the folder, inside the output directory, where
+	 * gitbook-pandoc keeps information between runs
 	 */
-	public static final String s_bigFilenameLatex = "all.temp.tex";
+	public static final String s_stateFolder = ".gitbook-pandoc/";
 	
 	/**
-	 * The name of the generated header file with all Pandoc declarations
+	 * The name of the file, in the state folder, where the build manifest
+	 * is kept
 	 */
-	public static final String s_pandocIncludeFilename = "pandoc.inc.tex";
+	public static final String s_manifestFilename = "manifest.txt";
+	
+	/**
+	 * The beginning of the name of the file, in the state folder, where the
+	 * outputs of pandoc for the probes of the built-in converter are recorded
+	 */
+	public static final String s_fastPathPrefix = "fastpath-";
+	
+	/**
+	 * The name of the file, in the state folder, listing the replacement
+	 * rules that never matched
+	 */
+	public static final String s_unmatchedFilename = "unmatched-rules.txt";
+	
+	/**
+	 * The name of the file, in the state folder, where the size and
+	 * checksum of each file copied from the source folder are kept
+	 */
+	public static final String s_syncFilename = "sources.txt";
+	
+	/**
+	 * The name of the file, in the state folder, listing the outputs whose
+	 * contents changed during the last run or rebuild
+	 */
+	public static final String s_changesFilename = "changed.txt";
+	
+	/**
+	 * The name of the file, in the state folder, where the git commit and
+	 * the modified files of the source folder at the last run are kept
+	 */
+	public static final String s_gitFilename = "git.txt";
+	
+	/**
+	 * The number of files copied from the source folder at the same time
+	 */
+	protected static final int s_copyThreads = 4;
+	
+	/**
+	 * The time, in milliseconds, the source folder must be quiet in watch
+	 * mode before the book is rebuilt
+	 */
+	protected static final long s_watchDebounce = 100;
+	
+	/**
+	 * The beginning of the lines that separate chapters when several of
+	 * them are sent to the same pandoc process
+	 */
+	protected static final String s_batchMarker = "%% gitbook-pandoc chapter ";
+
+	/**
+	 * Matches the label of a footnote, where it is defined or referenced:
+	 * {@code [^label]}
+	 */
+	protected static final Pattern s_footnoteLabel = Pattern.compile("\\[\\^([^\\]\\s]+)\\]");
+
+	/**
+	 * Matches the definition of a reference link: {@code [label]: url}
+	 */
+	protected static final Pattern s_linkDefinition = Pattern.compile("^ {0,3}\\[([^\\]^][^\\]]*)\\]:");
+
+	/**
+	 * Matches an ATX heading; the first group is its text
+	 */
+	protected static final Pattern s_atxHeading = Pattern.compile("^ {0,3}#{1,6}\\s+(.*?)[\\s#]*$");
+
+	/**
+	 * Matches the underline of a setext heading
+	 */
+	protected static final Pattern s_setextUnderline = Pattern.compile("^ {0,3}(=+|-+)\\s*$");
+
+	/**
+	 * Matches the attributes at the end of a heading; the first group is
+	 * its explicit identifier, if any
+	 */
+	protected static final Pattern s_headingAttributes = Pattern.compile("\\s*\\{[^}]*?(?:#([^\\s}]+))?[^}]*\\}\\s*$");
+
+	/**
+	 * Matches a bracketed text, optionally followed by a second one, as in
+	 * the reference links {@code [text][label]}, {@code [label][]} and
+	 * {@code [label]}
+	 */
+	protected static final Pattern s_bracketed = Pattern.compile("\\[([^\\[\\]]+)\\](\\[([^\\[\\]]*)\\])?");
 	
 	/**
 	 * Whether the conversion process is incremental. If so, the program
-	 * only processes the files whose source is newer than the destination
+	 * only processes the files whose source has changed since the last run,
+	 * according to the build manifest
 	 */
 	private boolean m_incremental = false;
+	
+	/**
+	 * The maximum number of chapters that are converted at the same time.
+	 * Defaults to the number of available processors.
+	 */
+	private int m_jobs = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * The maximum number of chapters that are sent to the same pandoc
+	 * process. With a value of 1, each chapter is converted on its own.
+	 */
+	private int m_batchSize = 1;
+	
+	/**
+	 * The maximum time, in seconds, a pandoc process may take before it is
+	 * killed. With a value of 0, there is no limit.
+	 */
+	private long m_timeout = 0;
+	
+	/**
+	 * Copies the source folder to the output folder
+	 */
+	private TreeSync m_sync = null;
+	
+	/**
+	 * How the files of the source folder other than chapters are
+	 * materialized in the output folder
+	 */
+	private TreeSync.Strategy m_assets = TreeSync.Strategy.COPY;
+	
+	/**
+	 * Whether to only put in the output folder the files the book uses: the
+	 * summary, the chapters of the index, the files they reference, and the
+	 * files that match {@link #m_includes}
+	 */
+	private boolean m_onlyUsed = false;
+	
+	/**
+	 * The glob patterns of the files of the source folder that are always
+	 * copied when only the used files are
+	 */
+	private List<String> m_includes = new ArrayList<String>();
+	
+	/**
+	 * The glob patterns of the files and folders of the source folder that
+	 * are never copied
+	 */
+	private List<String> m_excludes = new ArrayList<String>();
+	
+	/**
+	 * The files of the source folder the book uses, relative to that folder,
+	 * as of the last copy, or {@code null} if the whole folder is copied
+	 */
+	private Set<String> m_used = null;
+	
+	/**
+	 * Whether to ask git which files of the source folder changed since the
+	 * last run, instead of comparing the checksums of all of them
+	 */
+	private boolean m_git = false;
+	
+	/**
+	 * The files of the source folder that git reports as changed since the
+	 * last run, relative to that folder, or {@code null} if the checksums
+	 * of the files are compared
+	 */
+	private Set<String> m_gitChanged = null;
+	
+	/**
+	 * Bounds the number of pandoc processes running at the same time to
+	 * {@link #m_jobs}. The conversions themselves may run on virtual
+	 * threads, whose number is not bounded.
+	 */
+	private Semaphore m_pandocSlots = new Semaphore(1);
+	
+	/**
+	 * The number of chapters whose conversion is finished, used to report
+	 * progress when several conversions run at the same time
+	 */
+	private int m_filesDone = 0;
 
 	private String in_directory;
 	private String out_directory;
-	private LinkedHashMap<String,Integer> index;
+	
+	/**
+	 * The structure of the book, read from its summary
+	 */
+	private Book m_book;
+	
+	/**
+	 * The digests of the source and output files of the last run
+	 */
+	private BuildManifest m_manifest;
+	
+	/**
+	 * The digest of the source of each chapter in the index
+	 */
+	private Map<String,String> m_sourceHashes;
+	
+	/**
+	 * The fingerprint of the configuration each chapter in the index is
+	 * converted with
+	 */
+	private Map<String,String> m_fingerprints;
+	
+	/**
+	 * The features of each chapter in the index that have an influence on
+	 * the preamble. They are found by {@link #prepareMarkdown(String)},
+	 * which may be called from several threads at the same time.
+	 */
+	private Map<String,Set<String>> m_features;
+	
+	/**
+	 * The chapters converted during the last call to
+	 * {@link #markdownToLatex(Set)}
+	 */
+	private Set<String> m_converted;
+	
+	/**
+	 * The generated files whose contents changed since the last run or
+	 * rebuild, relative to the output directory
+	 */
+	private Set<String> m_changedOutputs = Collections.synchronizedSet(new TreeSet<String>());
+	
+	/**
+	 * Whether to keep watching the source folder for changes after the book
+	 * has been converted
+	 */
+	private boolean m_watch = false;
+	
+	/**
+	 * The built-in converter used for the chapters that only contain simple
+	 * Markdown, or {@code null} to convert every chapter with pandoc
+	 */
+	private FastPathConverter m_fastPath = null;
+	
+	/**
+	 * The number of chapters converted by the built-in converter
+	 */
+	private AtomicInteger m_fastPathFiles = new AtomicInteger();
+	
+	/**
+	 * The number of chapters converted by pandoc
+	 */
+	private AtomicInteger m_pandocFiles = new AtomicInteger();
+	
+	/**
+	 * The number of pandoc processes run to convert chapters, and the wall
+	 * and CPU time they took, in nanoseconds
+	 */
+	private AtomicLong m_pandocRuns = new AtomicLong(), m_pandocWallTime = new AtomicLong(), m_pandocCpuTime = new AtomicLong();
+	
+	/**
+	 * The output of {@code pandoc --version}
+	 */
+	private String m_pandocVersion = null;
 	private String m_outPrefix = "";
 
 	private File summary;
@@ -117,6 +378,17 @@ public class GitbookToPandoc
 	 */
 	protected List<LatexHack> m_latexHacks;
 	
+	/**
+	 * The engine applying the LaTeX hacks to each chapter
+	 */
+	protected LatexHackChain m_latexChain;
+	
+	/**
+	 * The replacement rules read from the file given on the command line,
+	 * if any
+	 */
+	protected RegexReplace m_replaceRules = null;
+	
 	/**
 	 * A list of Markdown hacks
 	 */
@@ -132,218 +404,1278 @@ public class GitbookToPandoc
 	 *            the output directory where all contents of in_directory will
 	 *            be copied to, then converted, then new book.tex created
 	 */
-	public GitbookToPandoc(String in_directory, String out_directory, String out_prefix)
+	public GitbookToPandoc(String in_directory, String out_directory, String out_prefix)
+	{
+		super();
+		this.in_directory = in_directory;
+		this.out_directory = addSlash(out_directory + out_prefix);
+		m_outPrefix = out_prefix;
+		m_latexHacks = new LinkedList<LatexHack>();
+		m_latexChain = new LatexHackChain(m_latexHacks);
+		m_latexHacks.add(PromoteTitles.instance);
+		m_latexHacks.add(FlattenImageLinks.instance);
+		m_latexHacks.add(new RepositionImageUrls(out_directory, m_outPrefix));
+		InlineRegexReplace directives = new InlineRegexReplace();
+		m_latexHacks.add(directives);
+		m_latexHacks.add(directives);
+		m_markdownHacks = new LinkedList<MarkdownHack>();
+		m_markdownHacks.add(directives.getCollector());
+		m_markdownHacks.add(new MarkdownTokenizer().addAll(SuperscriptSubscript.instance).addAll(IndexReplace.instance));
+		List<String[]> replacements = new ArrayList<String[]>();
+		replacements.add(new String[]{".*", "GPGP\\index", "\\index"});
+		RegexReplace rr = new RegexReplace(replacements);
+		rr.useRegex(false);
+		m_latexHacks.add(rr);
+	}
+	
+	/**
+	 * Adds a LaTeX hack to the list of post-processing objects
+	 * @param hack The hack
+	 */
+	public void addLatexHack(LatexHack hack)
+	{
+		m_latexHacks.add(hack);
+	}
+	
+	/**
+	 * Adds a Markdown hack to the list of pre-processing objects
+	 * @param hack The hack
+	 */
+	public void addMarkdownHack(MarkdownHack hack)
+	{
+		m_markdownHacks.add(hack);
+	}
+	
+	public void run() throws GitbookRuntimeException
+	{
+		m_sourceHashes = new HashMap<String,String>();
+		m_fingerprints = new HashMap<String,String>();
+		m_features = new ConcurrentHashMap<String,Set<String>>();
+		if (m_pandocVersion == null)
+		{
+			m_pandocVersion = getPandocVersion();
+		}
+		// copy the source to destination
+		GitState git_state = null;
+		try 
+		{
+			m_sync = new TreeSync(new File(in_directory), new File(out_directory), s_copyThreads);
+			m_sync.setStrategy(m_assets);
+			// The chapters and the LaTeX files are written to in the output folder
+			m_sync.alwaysCopy(".md");
+			m_sync.alwaysCopy(".tex");
+			m_sync.setManifest(new File(out_directory + s_stateFolder + s_syncFilename));
+			// The history of a git working tree is not part of the book
+			m_sync.exclude("{.git,**/.git}");
+			for (String glob : m_excludes)
+			{
+				m_sync.exclude(glob);
+			}
+			m_used = null;
+			m_gitChanged = null;
+			if (m_git)
+			{
+				git_state = GitState.read(new File(in_directory));
+				m_gitChanged = findGitChanges(git_state);
+			}
+			if (m_gitChanged != null)
+			{
+				syncGitChanges();
+			}
+			else if (!m_onlyUsed)
+			{
+				System.out.println(m_sync.sync(m_incremental));
+			}
+		}
+		catch (IOException e) 
+		{
+			throw new GitbookRuntimeException.CopyException(in_directory, out_directory);
+		}
+
+		// find the summary file in the source folder
+		findSummary();
+		
+		// load the digests of the previous run
+		m_manifest = BuildManifest.load(new File(out_directory + s_stateFolder + s_manifestFilename));
+
+		try
+		{
+			// checks which constructs the built-in converter handles like pandoc
+			calibrateFastPath();
+			
+			// indexes all the markdown files based on the summary.md
+			buildIndex();
+
+			// add in the extra README.md from the gitbook folder itself (usually
+			// serves as introduction or foreword or whatever
+			//buildForeword();
+			
+			// copies the files the book uses, if the source folder was not copied
+			if (m_onlyUsed)
+			{
+				System.out.println(syncUsedFiles(m_incremental));
+			}
+
+			// converts markdown files to LaTeX using pandoc
+			markdownToLatex(null);
+
+			// outputs LaTeX file
+			outputLatex();
+			
+			// lists the outputs that changed for the next build steps
+			writeChangeList();
+			
+			// records the digests of this run for the next one
+			updateManifest();
+			if (git_state != null)
+			{
+				git_state.save(new File(out_directory + s_stateFolder + s_gitFilename));
+			}
+			m_gitChanged = null;
+		}
+		catch (IOException e)
+		{
+			throw new GitbookRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Watches the source folder and rebuilds the parts of the book affected
+	 * by each change, until the program is interrupted. This method must be
+	 * called after {@link #run()}; the index and the digests computed by
+	 * that run are kept in memory and updated as the book changes.
+	 * @throws GitbookRuntimeException If the source folder cannot be watched
+	 */
+	public void watch() throws GitbookRuntimeException
+	{
+		BookWatcher watcher;
+		try
+		{
+			watcher = new BookWatcher(new File(in_directory), new File(out_directory), s_watchDebounce);
+		}
+		catch (IOException e)
+		{
+			throw new GitbookRuntimeException(e);
+		}
+		m_incremental = true;
+		System.out.println("Watching " + in_directory + " for changes");
+		while (true)
+		{
+			Set<String> changes;
+			try
+			{
+				changes = watcher.awaitChanges();
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			long start = System.currentTimeMillis();
+			try
+			{
+				rebuild(changes);
+				System.out.println("Rebuilt in " + (System.currentTimeMillis() - start) + " ms");
+			}
+			catch (IOException e)
+			{
+				System.err.println("Rebuild failed: " + e.getMessage());
+			}
+		}
+		try
+		{
+			watcher.close();
+		}
+		catch (IOException e)
+		{
+			// Do nothing
+		}
+	}
+	
+	/**
+	 * Rebuilds the book after some files of the source folder have changed.
+	 * The changed files are copied (or deleted) in the output folder, the
+	 * index is built again if the summary is among them, and only the
+	 * chapters that changed are converted.
+	 * @param changes The paths of the changed files, relative to the source
+	 * folder
+	 * @throws IOException
+	 */
+	protected void rebuild(Set<String> changes) throws IOException
+	{
+		boolean reindex = false;
+		Set<String> changed_chapters = new HashSet<String>();
+		for (String path : changes)
+		{
+			if (path.equals(BookWatcher.OVERFLOW))
+			{
+				// Some events were lost: look at every file
+				if (m_onlyUsed)
+				{
+					m_used = null;
+				}
+				else
+				{
+					System.out.println(m_sync.sync(true));
+				}
+				changed_chapters = null;
+				reindex = true;
+				break;
+			}
+			File source = new File(in_directory + path);
+			File dest = new File(out_directory + path);
+			if (source.exists())
+			{
+				if (!m_onlyUsed || m_used.contains(path))
+				{
+					m_sync.sync(path, false);
+				}
+			}
+			else if (dest.isFile())
+			{
+				m_sync.delete(Collections.singletonList(path));
+			}
+			if (path.equalsIgnoreCase(s_summaryFilename))
+			{
+				reindex = true;
+			}
+			changed_chapters.add(out_directory + path);
+		}
+		if (reindex)
+		{
+			findSummary();
+			buildIndex();
+		}
+		else
+		{
+			// Chapters may have been created or deleted
+			m_book.stat(new File(in_directory));
+		}
+		if (m_onlyUsed)
+		{
+			// A chapter may have started to use new files
+			boolean all = m_used == null;
+			TreeSync.Summary copied = syncUsedFiles(true);
+			if (all)
+			{
+				System.out.println(copied);
+			}
+		}
+		markdownToLatex(changed_chapters);
+		outputLatex();
+		writeChangeList();
+		updateManifest();
+	}
+
+	/**
+	 * Finds the files of the source folder that changed since the last run
+	 * by comparing the current state of its git working tree with the one
+	 * recorded by that run
+	 * @param current The current state, or {@code null} if the source
+	 * folder is not in a git working tree
+	 * @return The paths of the changed files, relative to the source folder,
+	 * or {@code null} if the checksums of all the files must be compared
+	 */
+	protected Set<String> findGitChanges(GitState current)
+	{
+		if (current == null)
+		{
+			System.out.println("The source folder is not in a git repository; comparing checksums");
+			return null;
+		}
+		GitState previous = GitState.load(new File(out_directory + s_stateFolder + s_gitFilename));
+		if (previous == null || !new File(out_directory + s_stateFolder + s_syncFilename).isFile())
+		{
+			System.out.println("No git commit recorded by a previous run; comparing checksums");
+			return null;
+		}
+		try
+		{
+			Set<String> changed = current.changedSince(new File(in_directory), previous);
+			System.out.println(changed.size() + " files changed since commit " + previous.getCommit().substring(0, Math.min(7, previous.getCommit().length())));
+			return changed;
+		}
+		catch (IOException e)
+		{
+			System.out.println("Cannot compare with commit " + previous.getCommit() + "; comparing checksums\n" + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Copies the files that git reports as changed, and deletes the copies
+	 * of the files that no longer exist. When only the used files are
+	 * copied, they are copied once the index is built.
+	 * @throws IOException If a file cannot be copied or deleted
+	 */
+	protected void syncGitChanges() throws IOException
+	{
+		List<String> existing = new ArrayList<String>();
+		List<String> deleted = new ArrayList<String>();
+		for (String path : m_gitChanged)
+		{
+			if (new File(in_directory + path).isFile())
+			{
+				existing.add(path);
+			}
+			else
+			{
+				deleted.add(path);
+			}
+		}
+		m_sync.delete(deleted);
+		if (!m_onlyUsed)
+		{
+			System.out.println(m_sync.syncFiles(existing, true));
+		}
+	}
+
+	/**
+	 * Copies the files the book uses that were not copied yet: the summary,
+	 * the chapters of the index, the images and includes they reference, and
+	 * the files that match the include patterns. The references are looked
+	 * for in the source folder, as the copies are only brought up to date
+	 * by this method.
+	 * @param incremental Whether to skip the files that have not changed
+	 * since the last run
+	 * @return A summary of what was copied
+	 * @throws IOException If a file cannot be read or copied
+	 */
+	protected TreeSync.Summary syncUsedFiles(boolean incremental) throws IOException
+	{
+		List<String> chapters = new ArrayList<String>();
+		chapters.add(summary.getName());
+		for (Book.Chapter chapter : m_book.getChapters())
+		{
+			chapters.add(chapter.getPath());
+		}
+		Set<String> used = new ReferenceScanner(new File(in_directory)).scan(chapters);
+		used.addAll(m_sync.find(m_includes));
+		List<String> to_copy = new ArrayList<String>();
+		for (String path : used)
+		{
+			if (m_used != null && m_used.contains(path))
+			{
+				continue;
+			}
+			if (m_gitChanged != null && !m_gitChanged.contains(path) && new File(out_directory + path).isFile())
+			{
+				// Unchanged according to git, and already copied
+				continue;
+			}
+			to_copy.add(path);
+		}
+		m_used = used;
+		return m_sync.syncFiles(to_copy, incremental);
+	}
+
+	/**
+	 * Calibrates the built-in converter against the installed version of
+	 * pandoc, if it is used. The outputs of pandoc are recorded in the state
+	 * folder, so that pandoc is only called on the probes once per version.
+	 * @throws IOException If pandoc cannot be run on the probes
+	 */
+	protected void calibrateFastPath() throws IOException
+	{
+		if (m_fastPath == null)
+		{
+			return;
+		}
+		StringBuilder key = new StringBuilder();
+		key.append(m_pandocVersion).append("\n");
+		for (String option : s_pandocOptions)
+		{
+			key.append(option).append(" ");
+		}
+		File recorded = new File(out_directory + s_stateFolder + s_fastPathPrefix + FileHelper.digest(key.toString()) + ".txt");
+		m_fastPath.calibrate(getPandocCommand("-f", "markdown", "-t", "latex"), recorded);
+		if (m_fastPath.getEnabled().isEmpty())
+		{
+			System.out.println("Built-in converter disabled: its output differs from this version of pandoc");
+		}
+		else
+		{
+			System.out.println("Built-in converter enabled for " + m_fastPath.getEnabled());
+		}
+	}
+	
+	/**
+	 * Finds the summary.md file in the gitbook directory. Ignores case.
+	 */
+	private void findSummary() 
+	{
+		File in_dir = new File(in_directory);
+		File[] listOfFiles = in_dir.listFiles();
+		for (File file : listOfFiles)
+		{
+			if (file.getName().equalsIgnoreCase(s_summaryFilename)) 
+			{
+				summary = file;
+			}
+		}
+	}
+
+	/**
+	 * Reads the structure of the book from the summary.md, and the
+	 * attributes of the files of its chapters, which all the later steps
+	 * share.
+	 * 
+	 * @throws IOException
+	 */
+	protected void buildIndex() throws IOException 
+	{
+		m_book = Book.read(summary);
+		m_book.stat(new File(in_directory));
+	}
+
+	/**
+	 * Converts each of these markdown files into LaTeX using pandoc. Assumes
+	 * that the directory pandoc resides in is /usr/local/bin/pandoc. To
+	 * override that, change the static declaration at the top. Up to
+	 * {@link #m_jobs} pandoc processes run at the same time; on JDKs with
+	 * virtual threads, each conversion runs on its own virtual thread,
+	 * otherwise on a pool of {@link #m_jobs} threads. The order of the index
+	 * is not affected by the order in which conversions finish.
+	 * 
+	 * @param changed If not null, the only files (or folders) of the output
+	 * directory that may have changed since the last call. The other
+	 * chapters already processed by a previous call are skipped without
+	 * being looked at.
+	 * @throws IOException
+	 */
+	private void markdownToLatex(Set<String> changed) throws IOException
+	{
+		int num_skip = 0;
+		m_converted = new HashSet<String>();
+		m_changedOutputs.clear();
+		m_fastPathFiles.set(0);
+		m_pandocFiles.set(0);
+		m_pandocRuns.set(0);
+		m_pandocWallTime.set(0);
+		m_pandocCpuTime.set(0);
+		int total_files = m_book.size();
+		int cur_file = 0;
+		m_filesDone = 0;
+		System.out.println();
+		m_pandocSlots = new Semaphore(Math.max(1, m_jobs));
+		ExecutorService pool = ThreadHelper.newExecutor(m_jobs);
+		List<Future<Void>> conversions = new ArrayList<Future<Void>>();
+		List<String> batch = new ArrayList<String>();
+		forgetRemovedChapters();
+		for (Book.Chapter chapter : m_book.getChapters()) 
+		{
+			String filename = out_directory + chapter.getPath();
+			cur_file++;
+			if (changed != null && m_sourceHashes.containsKey(filename) && !isChanged(filename, changed))
+			{
+				num_skip++;
+				continue;
+			}
+			if (!chapter.exists())
+			{
+				System.err.println("File " + filename + " not found");
+				forgetChapter(filename);
+				continue;
+			}
+			File markdown = new File(filename);
+			String latex_filename = markdown.getAbsolutePath().replaceAll(".md", ".tex");
+			File f_latex = new File(latex_filename);
+			String source_hash = null;
+			if (m_gitChanged != null && !m_gitChanged.contains(chapter.getPath()))
+			{
+				// Unchanged according to git: the digest of the last run still holds
+				source_hash = m_manifest.getSourceHash(chapter.getPath());
+			}
+			if (source_hash == null)
+			{
+				source_hash = FileHelper.digest(getSourceFile(filename));
+			}
+			m_sourceHashes.put(filename, source_hash);
+			String fingerprint = getFingerprint(filename);
+			m_fingerprints.put(filename, fingerprint);
+			if (m_incremental)
+			{
+				if (m_manifest.isUpToDate(getRelativePath(filename), source_hash, fingerprint, f_latex))
+				{
+					m_features.put(filename, m_manifest.getFeatures(getRelativePath(filename)));
+					// No change, skip this file
+					System.out.println("\u001b[2K\r" + cur_file + "/" + total_files + " SKIP " + filename + "    ");
+					num_skip++;
+					continue;
+				}
+			}
+			m_converted.add(filename);
+			batch.add(filename);
+			if (batch.size() >= m_batchSize)
+			{
+				conversions.add(pool.submit(new ChapterConversion(batch, total_files)));
+				batch = new ArrayList<String>();
+			}
+		}
+		if (!batch.isEmpty())
+		{
+			conversions.add(pool.submit(new ChapterConversion(batch, total_files)));
+		}
+		pool.shutdown();
+		try
+		{
+			// Wait for all conversions, in index order
+			for (Future<Void> conversion : conversions)
+			{
+				conversion.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			pool.shutdownNow();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			pool.shutdownNow();
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		System.out.println();
+		if (m_fastPath != null)
+		{
+			System.out.println("Converted " + m_fastPathFiles.get() + " files with the built-in converter, " + m_pandocFiles.get() + " with pandoc");
+		}
+		if (m_pandocRuns.get() > 0)
+		{
+			System.out.println("Ran pandoc " + m_pandocRuns.get() + " times: " + formatSeconds(m_pandocWallTime.get()) + " s in total, " + formatSeconds(m_pandocCpuTime.get()) + " s of CPU time");
+		}
+		writeHeaders();
+		reportUnmatchedRules();
+		System.out.println("Skipped " + num_skip + " files");
+	}
+	
+	/**
+	 * Checks whether a file is among a set of changed files, or inside one
+	 * of the changed folders
+	 * @param filename The name of the file
+	 * @param changed The names of the changed files and folders
+	 * @return true if the file may have changed
+	 */
+	private static boolean isChanged(String filename, Set<String> changed)
+	{
+		if (changed.contains(filename))
+		{
+			return true;
+		}
+		for (String path : changed)
+		{
+			if (filename.startsWith(path + "/"))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Converts a single Markdown file into LaTeX: applies the Markdown hacks,
+	 * calls pandoc and applies the LaTeX hacks to its output. This method
+	 * may be called from several threads at the same time.
+	 * @param filename The name of the Markdown file to convert
+	 * @param total_files The total number of files, used to report progress
+	 * @throws IOException
+	 */
+	protected void convertChapter(String filename, int total_files) throws IOException
+	{
+		String markdown = prepareMarkdown(filename);
+		if (!convertFastPath(filename, markdown, total_files))
+		{
+			convertWithPandoc(filename, markdown, total_files);
+		}
+	}
+	
+	/**
+	 * Converts a chapter whose Markdown hacks have already been applied with
+	 * pandoc. The Markdown is sent to pandoc through its standard input and
+	 * the LaTeX is read from its standard output, so that no intermediate
+	 * file is written.
+	 * @param filename The name of the Markdown file
+	 * @param markdown The Markdown of the chapter
+	 * @param total_files The total number of files, used to report progress
+	 * @throws IOException If pandoc fails
+	 */
+	protected void convertWithPandoc(String filename, String markdown, int total_files) throws IOException
+	{
+		CommandResult result = runPandoc(markdown, filename);
+		if (result.getExitCode() != 0)
+		{
+			throw new IOException("pandoc exited with code " + result.getExitCode() + " when converting " + filename + "\n" + result.getStderrString());
+		}
+		m_pandocFiles.incrementAndGet();
+		finishChapter(filename, result.getStdoutString(), total_files);
+	}
+	
+	/**
+	 * Converts some Markdown to LaTeX with pandoc. At most {@link #m_jobs}
+	 * pandoc processes run at the same time; the process is killed if it
+	 * takes longer than {@link #m_timeout}.
+	 * @param markdown The Markdown
+	 * @param what A description of what is converted, for error messages
+	 * @return The result of pandoc
+	 * @throws IOException If pandoc cannot be run, or takes too long
+	 */
+	protected CommandResult runPandoc(String markdown, String what) throws IOException
+	{
+		String[] command = getPandocCommand("-f", "markdown", "-t", "latex");
+		CompletableFuture<CommandResult> future = null;
+		CommandResult result;
+		try
+		{
+			m_pandocSlots.acquire();
+			try
+			{
+				future = new CommandRunner(command, markdown).execute(m_timeout, TimeUnit.SECONDS);
+				result = future.get();
+			}
+			finally
+			{
+				m_pandocSlots.release();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			if (future != null)
+			{
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while converting " + what);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof TimeoutException)
+			{
+				throw new IOException("pandoc did not finish converting " + what + " within " + m_timeout + " s");
+			}
+			throw new IOException("pandoc could not be run to convert " + what, e.getCause());
+		}
+		m_pandocRuns.incrementAndGet();
+		m_pandocWallTime.addAndGet(result.getWallTime());
+		if (result.getCpuTime() > 0)
+		{
+			m_pandocCpuTime.addAndGet(result.getCpuTime());
+		}
+		return result;
+	}
+	
+	/**
+	 * Formats a duration in seconds, with one decimal
+	 * @param nanos The duration, in nanoseconds
+	 * @return The formatted duration
+	 */
+	private static String formatSeconds(long nanos)
+	{
+		return String.format("%.1f", nanos / 1e9);
+	}
+	
+	/**
+	 * Tries to convert a chapter whose Markdown hacks have already been
+	 * applied with the built-in converter
+	 * @param filename The name of the Markdown file
+	 * @param markdown The Markdown of the chapter
+	 * @param total_files The total number of files, used to report progress
+	 * @return true if the chapter has been converted, false if it must be
+	 * converted by pandoc
+	 * @throws IOException If the LaTeX file cannot be written
+	 */
+	protected boolean convertFastPath(String filename, String markdown, int total_files) throws IOException
+	{
+		if (m_fastPath == null)
+		{
+			return false;
+		}
+		String latex = m_fastPath.convert(markdown);
+		if (latex == null)
+		{
+			return false;
+		}
+		m_fastPathFiles.incrementAndGet();
+		finishChapter(filename, latex, total_files);
+		return true;
+	}
+	
+	/**
+	 * Converts a batch of Markdown files with a single pandoc process. The
+	 * files are joined into one document, separated by raw LaTeX marker
+	 * lines, and pandoc's output is split back along these markers. Each
+	 * chapter then goes through the LaTeX hacks on its own. If the markers
+	 * cannot all be found in the output (for example because of an unclosed
+	 * code block), the chapters of the batch are converted one by one.
+	 * Chapters the built-in converter can handle are left out of the batch.
+	 * <p>
+	 * Since pandoc sees the batch as a single document, a footnote or a
+	 * reference link of a chapter could resolve to a definition or a
+	 * heading in another one, and the identifier of a heading could get a
+	 * suffix because another chapter has the same one. The batch is
+	 * therefore split into groups of chapters whose labels do not collide,
+	 * as found by {@link #getLabels(String)}, and each group is converted
+	 * by its own pandoc process; a chapter is then converted the same way
+	 * whatever the other chapters of its batch.
+	 * @param filenames The names of the Markdown files to convert
+	 * @param total_files The total number of files, used to report progress
+	 * @throws IOException
+	 */
+	protected void convertBatch(List<String> filenames, int total_files) throws IOException
+	{
+		List<List<String>> group_names = new ArrayList<List<String>>();
+		List<List<String>> group_contents = new ArrayList<List<String>>();
+		List<Set<String>> group_labels = new ArrayList<Set<String>>();
+		for (String filename : filenames)
+		{
+			String markdown = prepareMarkdown(filename);
+			if (convertFastPath(filename, markdown, total_files))
+			{
+				continue;
+			}
+			Set<String> labels = getLabels(markdown);
+			int group = 0;
+			while (group < group_labels.size() && !Collections.disjoint(group_labels.get(group), labels))
+			{
+				group++;
+			}
+			if (group == group_labels.size())
+			{
+				group_names.add(new ArrayList<String>());
+				group_contents.add(new ArrayList<String>());
+				group_labels.add(new HashSet<String>());
+			}
+			group_names.get(group).add(filename);
+			group_contents.get(group).add(markdown);
+			group_labels.get(group).addAll(labels);
+		}
+		for (int i = 0; i < group_names.size(); i++)
+		{
+			convertGroup(group_names.get(i), group_contents.get(i), total_files);
+		}
+	}
+
+	/**
+	 * Finds the labels of a chapter that pandoc resolves across a whole
+	 * document. These are:
+	 * <ul>
+	 * <li>the labels of footnotes, whether they are defined or only
+	 * referenced, prefixed with {@code ^};</li>
+	 * <li>the identifiers of headings, given explicitly with {@code {#id}}
+	 * or generated from their text, prefixed with {@code #};</li>
+	 * <li>the targets of reference links, prefixed with {@code [}: the
+	 * labels of link definitions, the text of headings, which implicit
+	 * header references point to, and the labels used between brackets
+	 * that the chapter does not define.</li>
+	 * </ul>
+	 * Two chapters whose labels are disjoint are converted the same way
+	 * whether they are in the same document or not. Code blocks and inline
+	 * code are skipped.
+	 * @param markdown The Markdown text of the chapter
+	 * @return The labels, in lower case
+	 */
+	protected static Set<String> getLabels(String markdown)
+	{
+		Set<String> labels = new HashSet<String>();
+		Set<String> targets = new HashSet<String>();
+		Set<String> used = new HashSet<String>();
+		String fence = null;
+		String previous = "";
+		for (String line : markdown.split("\n"))
+		{
+			String trimmed = line.trim();
+			if (fence != null)
+			{
+				// Inside a code block
+				if (trimmed.startsWith(fence))
+				{
+					fence = null;
+				}
+				continue;
+			}
+			if (trimmed.startsWith("```") || trimmed.startsWith("~~~"))
+			{
+				fence = trimmed.substring(0, 3);
+				previous = "";
+				continue;
+			}
+			if (line.indexOf('`') >= 0)
+			{
+				line = line.replaceAll("`+[^`]*`+", "");
+			}
+			String heading = null;
+			Matcher mat = s_atxHeading.matcher(line);
+			if (mat.matches())
+			{
+				heading = mat.group(1);
+			}
+			else if (!previous.isEmpty() && s_setextUnderline.matcher(line).matches())
+			{
+				heading = previous;
+			}
+			if (heading != null)
+			{
+				String id = null;
+				mat = s_headingAttributes.matcher(heading);
+				if (mat.find())
+				{
+					id = mat.group(1);
+					heading = heading.substring(0, mat.start());
+				}
+				if (id == null)
+				{
+					id = getIdentifier(heading);
+				}
+				labels.add("#" + id.toLowerCase());
+				targets.add(normalizeLabel(heading));
+			}
+			mat = s_linkDefinition.matcher(line);
+			if (mat.find())
+			{
+				targets.add(normalizeLabel(mat.group(1)));
+				line = line.substring(mat.end());
+			}
+			if (line.indexOf('[') >= 0)
+			{
+				mat = s_footnoteLabel.matcher(line);
+				while (mat.find())
+				{
+					labels.add("^" + mat.group(1).toLowerCase());
+				}
+				mat = s_bracketed.matcher(line);
+				while (mat.find())
+				{
+					String label = mat.group(3) == null || mat.group(3).trim().isEmpty() ? mat.group(1) : mat.group(3);
+					char next = mat.end() < line.length() ? line.charAt(mat.end()) : ' ';
+					if (label.startsWith("^") || (mat.group(2) == null && (next == '(' || next == '{')))
+					{
+						// A footnote, an inline link or a span
+						continue;
+					}
+					used.add(normalizeLabel(label));
+				}
+			}
+			previous = heading == null ? trimmed : "";
+		}
+		for (String target : targets)
+		{
+			labels.add("[" + target);
+		}
+		for (String label : used)
+		{
+			if (!targets.contains(label))
+			{
+				labels.add("[" + label);
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Normalizes the label of a reference link the way pandoc compares
+	 * them: case and runs of spaces do not matter
+	 * @param label The label
+	 * @return The normalized label
+	 */
+	protected static String normalizeLabel(String label)
+	{
+		return label.trim().replaceAll("\\s+", " ").toLowerCase();
+	}
+
+	/**
+	 * Approximates the identifier pandoc generates for a heading: the
+	 * letters, digits, underscores, hyphens and periods of its text, in
+	 * lower case, with spaces turned into hyphens and without anything
+	 * before the first letter
+	 * @param heading The text of the heading
+	 * @return The identifier
+	 */
+	protected static String getIdentifier(String heading)
+	{
+		heading = heading.trim().replaceAll("\\s+", " ");
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < heading.length(); i++)
+		{
+			char c = Character.toLowerCase(heading.charAt(i));
+			if (Character.isWhitespace(c))
+			{
+				c = '-';
+			}
+			else if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.')
+			{
+				continue;
+			}
+			if (out.length() > 0 || Character.isLetter(c))
+			{
+				out.append(c);
+			}
+		}
+		return out.length() == 0 ? "section" : out.toString();
+	}
+
+	/**
+	 * Converts a group of chapters with a single pandoc process
+	 * @param filenames The names of the Markdown files to convert
+	 * @param contents The Markdown text of each file, ready for pandoc
+	 * @param total_files The total number of files, used to report progress
+	 * @throws IOException
+	 */
+	protected void convertGroup(List<String> filenames, List<String> contents, int total_files) throws IOException
+	{
+		// The nonce makes sure a marker cannot collide with the text of a chapter
+		String nonce = Long.toHexString(Double.doubleToLongBits(Math.random()));
+		StringBuilder batch = new StringBuilder();
+		for (int i = 0; i < filenames.size(); i++)
+		{
+			batch.append("\n\n```{=latex}\n").append(s_batchMarker).append(nonce).append(" ").append(i).append("\n```\n\n");
+			batch.append(contents.get(i));
+		}
+		List<String> parts = null;
+		try
+		{
+			CommandResult result = runPandoc(batch.toString(), "a batch of " + filenames.size() + " chapters");
+			if (result.getExitCode() == 0)
+			{
+				parts = splitBatch(result.getStdoutString(), s_batchMarker + nonce + " ", filenames.size());
+			}
+		}
+		catch (InterruptedIOException e)
+		{
+			throw e;
+		}
+		catch (IOException e)
+		{
+			// Find the culprit by converting the chapters separately
+			System.err.println("\n" + e.getMessage());
+		}
+		if (parts == null)
+		{
+			System.err.println("\nCould not convert " + filenames.size() + " chapters in a single batch; converting them separately");
+			for (int i = 0; i < filenames.size(); i++)
+			{
+				convertWithPandoc(filenames.get(i), contents.get(i), total_files);
+			}
+			return;
+		}
+		for (int i = 0; i < filenames.size(); i++)
+		{
+			m_pandocFiles.incrementAndGet();
+			finishChapter(filenames.get(i), parts.get(i), total_files);
+		}
+	}
+	
+	/**
+	 * Splits the output of pandoc for a batch of chapters along the marker
+	 * lines inserted by {@link #convertGroup(List, List, int)}.
+	 * @param latex The LaTeX produced by pandoc
+	 * @param marker The beginning of each marker line
+	 * @param num_parts The number of chapters in the batch
+	 * @return The LaTeX of each chapter, or {@code null} if the markers were
+	 * not all found in the expected order
+	 */
+	protected static List<String> splitBatch(String latex, String marker, int num_parts)
+	{
+		List<String> parts = new ArrayList<String>(num_parts);
+		StringBuilder part = null;
+		Scanner scan = new Scanner(latex);
+		while (scan.hasNextLine())
+		{
+			String line = scan.nextLine();
+			if (line.startsWith(marker))
+			{
+				if (!line.equals(marker + (parts.size() + (part == null ? 0 : 1))))
+				{
+					// Marker out of sequence
+					scan.close();
+					return null;
+				}
+				if (part != null)
+				{
+					parts.add(trimBlankLines(part));
+				}
+				part = new StringBuilder();
+			}
+			else if (part != null)
+			{
+				part.append(line).append("\n");
+			}
+			else if (!line.trim().isEmpty())
+			{
+				// Text before the first marker
+				scan.close();
+				return null;
+			}
+		}
+		scan.close();
+		if (part == null)
+		{
+			return null;
+		}
+		parts.add(trimBlankLines(part));
+		if (parts.size() != num_parts)
+		{
+			return null;
+		}
+		return parts;
+	}
+	
+	/**
+	 * Removes the blank lines that pandoc puts around the marker lines, so
+	 * that the LaTeX of a chapter is the same as when it is converted on
+	 * its own
+	 * @param part The LaTeX of a chapter
+	 * @return The LaTeX without leading and trailing blank lines, followed
+	 * by a single newline
+	 */
+	private static String trimBlankLines(StringBuilder part)
 	{
-		super();
-		this.in_directory = in_directory;
-		this.out_directory = addSlash(out_directory + out_prefix);
-		m_outPrefix = out_prefix;
-		m_latexHacks = new LinkedList<LatexHack>();
-		m_latexHacks.add(PromoteTitles.instance);
-		m_latexHacks.add(FlattenImageLinks.instance);
-		m_latexHacks.add(new RepositionImageUrls(out_directory, m_outPrefix));
-		m_latexHacks.add(new InlineRegexReplace());
-		m_latexHacks.add(new InlineRegexReplace());
-		m_markdownHacks = new LinkedList<MarkdownHack>();
-		m_markdownHacks.add(IndexReplace.instance);
-		List<String[]> replacements = new ArrayList<String[]>();
-		replacements.add(new String[]{".*", "GPGP\\index", "\\index"});
-		RegexReplace rr = new RegexReplace(replacements);
-		rr.useRegex(false);
-		m_latexHacks.add(rr);
+		int start = 0, end = part.length();
+		while (start < end && part.charAt(start) == '\n')
+		{
+			start++;
+		}
+		while (end > start && part.charAt(end - 1) == '\n')
+		{
+			end--;
+		}
+		if (start == end)
+		{
+			return "";
+		}
+		return part.substring(start, end) + "\n";
 	}
 	
 	/**
-	 * Adds a LaTeX hack to the list of post-processing objects
-	 * @param hack The hack
+	 * Builds the command line calling pandoc to convert a chapter
+	 * @param args The arguments that come after the conversion options
+	 * @return The command line
 	 */
-	public void addLatexHack(LatexHack hack)
+	protected static String[] getPandocCommand(String ... args)
 	{
-		m_latexHacks.add(hack);
+		String[] command = new String[1 + s_pandocOptions.length + args.length];
+		command[0] = s_pandocPath;
+		System.arraycopy(s_pandocOptions, 0, command, 1, s_pandocOptions.length);
+		System.arraycopy(args, 0, command, 1 + s_pandocOptions.length, args.length);
+		return command;
 	}
 	
-	public void run() throws GitbookRuntimeException
+	/**
+	 * Computes the fingerprint of the configuration a chapter is converted
+	 * with. It covers the version of pandoc and the options it is called
+	 * with, as well as the ordered list of hacks and, for those that
+	 * depend on some configuration, the part of it that applies to this
+	 * chapter. A change to a rule that does not apply to a chapter hence
+	 * leaves its fingerprint untouched; so does a hack that has no rule
+	 * for this chapter.
+	 * @param filename The name of the Markdown file of the chapter
+	 * @return The fingerprint
+	 */
+	protected String getFingerprint(String filename)
 	{
-		index = new LinkedHashMap<String,Integer>();
-		// copy the source to destination
-		try 
+		StringBuilder out = new StringBuilder();
+		out.append(VERSION_STRING).append("\n");
+		out.append(m_pandocVersion).append("\n");
+		for (String option : s_pandocOptions)
 		{
-			FileHelper.copyFolder(new File(in_directory), new File(out_directory), m_incremental);
+			out.append(option).append(" ");
 		}
-		catch (IOException e) 
+		out.append("batch ").append(m_batchSize).append("\n");
+		if (m_fastPath != null)
 		{
-			throw new GitbookRuntimeException.CopyException(in_directory, out_directory);
+			out.append("fast path ").append(m_fastPath.getEnabled()).append("\n");
 		}
-
-		// find the summary file in the source folder
-		findSummary();
-
-		try
+		for (MarkdownHack hack : m_markdownHacks)
 		{
-			// add in the extra README.md from the gitbook folder itself (usually
-			// serves as introduction or foreword or whatever
-			//buildForeword();
-
-			// indexes all the markdown files based on the summary.md
-			buildIndex();
-
-			// converts markdown files to LaTeX using pandoc
-			markdownToLatex();
-
-			// outputs LaTeX file
-			outputLatex();					
+			appendHackFingerprint(out, hack, filename);
 		}
-		catch (IOException e)
+		for (LatexHack hack : m_latexHacks)
 		{
-			throw new GitbookRuntimeException(e);
+			appendHackFingerprint(out, hack, filename);
 		}
+		return FileHelper.digest(out.toString());
 	}
-
+	
+	private static void appendHackFingerprint(StringBuilder out, Object hack, String filename)
+	{
+		if (!(hack instanceof FingerprintedHack))
+		{
+			out.append(hack.getClass().getName()).append("\n");
+			return;
+		}
+		String fingerprint = ((FingerprintedHack) hack).getFingerprint(filename);
+		if (!fingerprint.isEmpty())
+		{
+			out.append(hack.getClass().getName()).append(" ").append(fingerprint).append("\n");
+		}
+	}
+	
 	/**
-	 * Finds the summary.md file in the gitbook directory. Ignores case.
+	 * Stages a chapter before it is sent to pandoc: reads its Markdown file
+	 * and passes the text through the chain of Markdown hacks. The file
+	 * itself is left untouched. The features of the text sent to pandoc are
+	 * recorded for the preamble.
+	 * @param filename The name of the Markdown file
+	 * @return The Markdown to send to pandoc
+	 * @throws IOException
 	 */
-	private void findSummary() 
+	protected String prepareMarkdown(String filename) throws IOException
 	{
-		File out_dir = new File(out_directory);
-		File[] listOfFiles = out_dir.listFiles();
-		for (File file : listOfFiles)
+		String contents = FileHelper.readToString(new File(filename));
+		for (MarkdownHack h : m_markdownHacks)
 		{
-			if (file.getName().equalsIgnoreCase(s_summaryFilename)) 
-			{
-				summary = file;
-			}
+			contents = h.hack(filename, contents);
 		}
+		m_features.put(filename, PreambleBuilder.scanFeatures(contents));
+		return contents;
 	}
-
+	
 	/**
-	 * Builds a LinkedHashMap of markdown files from the summary.md by
-	 * extracting the relative file paths from between the () brackets in
-	 * summary.md. Places a File class wrapper on each of these for convenience
-	 * later.
-	 * 
-	 * @throws IOException
+	 * Applies the LaTeX hacks to the output of pandoc for a chapter, shifts
+	 * its sections down one level if it is a sub-chapter, and writes the
+	 * result next to the Markdown file
+	 * @param filename The name of the Markdown file
+	 * @param file_contents The LaTeX produced by pandoc for this file
+	 * @param total_files The total number of files, used to report progress
+	 * @throws IOException If the LaTeX file cannot be written
 	 */
-	protected void buildIndex() throws IOException 
+	protected void finishChapter(String filename, String file_contents, int total_files) throws IOException
 	{
-		String summaryString = FileHelper.readToString(summary);
-		Pattern pattern = Pattern.compile("[(](.*)[)]");
-		Matcher matcher = pattern.matcher(summaryString);
-		while (matcher.find()) 
+		String latex_filename = new File(filename).getAbsolutePath().replaceAll(".md", ".tex");
+		Book.Chapter chapter = m_book.getChapter(getRelativePath(filename));
+		if (chapter != null && chapter.isSubchapter())
 		{
-			String filename = out_directory + matcher.group(1);
-			filename = filename.replaceAll("#.*", "");
-			if (!index.containsKey(filename))
-			{
-				if (matcher.group().toLowerCase().indexOf("readme") > -1) 
-				{
-					index.put(filename, CHAPTER);
-				}
-				else 
-				{
-					index.put(filename, SUBCHAPTER);
-				}				
-			}
+			file_contents = m_latexChain.apply(filename, file_contents, s_shift);
+		}
+		else
+		{
+			file_contents = m_latexChain.apply(filename, file_contents);
 		}
+		writeOutput(new File(latex_filename), file_contents);
+		printProgress(filename, total_files);
 	}
-
+	
 	/**
-	 * Converts each of these markdown files into LaTeX using pandoc. Assumes
-	 * that the directory pandoc resides in is /usr/local/bin/pandoc. To
-	 * override that, change the static declaration at the top.
-	 * 
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * Prints a progress line for a chapter whose conversion is finished.
+	 * Lines are printed one at a time, so that the output of concurrent
+	 * conversions does not get mixed up.
+	 * @param filename The name of the converted file
+	 * @param total_files The total number of files
 	 */
-	private void markdownToLatex() throws IOException
+	protected synchronized void printProgress(String filename, int total_files)
 	{
-		int num_skip = 0;
-		StringBuilder big_file = new StringBuilder();
-		int total_files = index.size();
-		int cur_file = 0;
-		System.out.println();
-		for (String filename : index.keySet()) 
+		m_filesDone++;
+		System.out.print("\u001b[2K\r" + m_filesDone + "/" + total_files + "  " + filename + "    ");
+	}
+	
+	/**
+	 * Task converting a batch of chapters, submitted to the pool of workers
+	 */
+	protected class ChapterConversion implements Callable<Void>
+	{
+		/**
+		 * The names of the Markdown files to convert
+		 */
+		protected final List<String> m_filenames;
+		
+		/**
+		 * The total number of files, used to report progress
+		 */
+		protected final int m_totalFiles;
+		
+		public ChapterConversion(List<String> filenames, int total_files)
 		{
-			cur_file++;
-			File f = new File(filename);
-			if (!f.exists())
-			{
-				System.err.println("File " + filename + " not found");
-				continue;
-			}
-			if (!m_incremental)
-			{
-				big_file.append(FileHelper.readToString(f));
-				big_file.append("\n");				
-			}
-			File markdown = new File(filename);
-			long markdown_date = markdown.lastModified();
-			String latex_filename = markdown.getAbsolutePath().replaceAll(".md", ".tex");
-			File f_latex = new File(latex_filename);
-			long latex_date = f_latex.lastModified();
-			if (m_incremental)
-			{
-				if (f_latex.exists() && markdown_date < latex_date)
-				{
-					// No change, skip this file
-					System.out.println("\u001b[2K\r" + cur_file + "/" + total_files + " SKIP " + filename + "    ");
-					num_skip++;
-					continue;
-				}
-			}
-			superscriptSubscript(markdown);
-			for (MarkdownHack h : m_markdownHacks)
+			super();
+			m_filenames = filenames;
+			m_totalFiles = total_files;
+		}
+		
+		@Override
+		public Void call() throws IOException
+		{
+			if (m_filenames.size() == 1)
 			{
-				h.hack(markdown);
+				convertChapter(m_filenames.get(0), m_totalFiles);
 			}
-			String[] command = new String[] { s_pandocPath, "--wrap=preserve", "-o",
-					latex_filename,
-					markdown.getAbsolutePath() };
-			System.out.print("\u001b[2K\r" + cur_file + "/" + total_files + "  " + filename + "    ");
-			CommandRunner runner = new CommandRunner(command);
-			runner.run();
-			String file_contents = FileHelper.readToString(new File(latex_filename));
-			for (LatexHack hack : m_latexHacks)
+			else
 			{
-				file_contents = hack.hack(filename, file_contents);
+				convertBatch(m_filenames, m_totalFiles);
 			}
-			FileHelper.writeFromString(new File(latex_filename), file_contents);
+			return null;
 		}
-		System.out.println();
-		// Call pandoc one last time with the big file to get the headers
-		if (!m_incremental)
+	}
+	
+	/**
+	 * Lists the replacement rules given on the command line that have not
+	 * matched in any of the chapters converted so far. The rules are
+	 * written to a file of the state folder, in the same format as the file
+	 * they were read from.
+	 */
+	protected void reportUnmatchedRules()
+	{
+		if (m_replaceRules == null)
 		{
-			//...except if we did an incremental conversion
-			writeHeaders(big_file);
+			return;
+		}
+		List<String[]> unmatched = m_replaceRules.getUnmatched();
+		StringBuilder out = new StringBuilder();
+		for (String[] rule : unmatched)
+		{
+			out.append(rule[0]).append("\n").append(rule[1]).append("\n").append(rule[2]).append("\n");
+		}
+		File report = new File(out_directory + s_stateFolder + s_unmatchedFilename);
+		FileHelper.writeFromString(report, out.toString());
+		if (!unmatched.isEmpty())
+		{
+			System.out.println(unmatched.size() + " of " + m_replaceRules.size() + " replacement rules never matched in the converted chapters; see " + report.getPath());
 		}
-		System.out.println("Skipped " + num_skip + " files");
 	}
 	
-	protected void writeHeaders(StringBuilder big_file_contents) throws IOException
+	/**
+	 * Forgets what previous calls to {@link #markdownToLatex(Set)} recorded
+	 * about the chapters that are no longer in the book, so that in watch
+	 * mode their features stop contributing to the preamble
+	 */
+	protected void forgetRemovedChapters()
 	{
-		FileWriter fw = new FileWriter(new File(out_directory + s_bigFilenameMarkdown));
-		fw.write(big_file_contents.toString());
-		fw.close();
-		CommandRunner pandoc_runner = new CommandRunner(new String[]{s_pandocPath, "-o", out_directory + s_bigFilenameLatex, "--standalone", out_directory + s_bigFilenameMarkdown});
-		pandoc_runner.run();
-		Scanner scan = new Scanner(new File(out_directory + s_bigFilenameLatex));
-		StringBuilder out = new StringBuilder();
-		while (scan.hasNextLine())
+		Set<String> filenames = new HashSet<String>();
+		for (Book.Chapter chapter : m_book.getChapters())
 		{
-			String line = scan.nextLine();
-			if (line.contains("documentclass"))
-			{
-				continue;
-			}
-			if (line.contains("\\begin{document}"))
-			{
-				break;
-			}
-			out.append(line).append("\n");
+			filenames.add(out_directory + chapter.getPath());
 		}
-		scan.close();
-		fw = new FileWriter(new File(out_directory + s_pandocIncludeFilename));
-		fw.write(out.toString());
-		fw.close();
+		m_sourceHashes.keySet().retainAll(filenames);
+		m_fingerprints.keySet().retainAll(filenames);
+		m_features.keySet().retainAll(filenames);
+	}
+
+	/**
+	 * Forgets what previous calls to {@link #markdownToLatex(Set)} recorded
+	 * about a chapter
+	 * @param filename The name of the Markdown file of the chapter
+	 */
+	protected void forgetChapter(String filename)
+	{
+		m_sourceHashes.remove(filename);
+		m_fingerprints.remove(filename);
+		m_features.remove(filename);
+	}
+
+	/**
+	 * Writes the LaTeX preamble that pandoc generates for the book to the
+	 * include file. The preamble is obtained from the features found in the
+	 * chapters, so that it is up to date in incremental builds as well.
+	 * @throws IOException
+	 */
+	protected void writeHeaders() throws IOException
+	{
+		Set<String> features = new TreeSet<String>();
+		for (Set<String> chapter_features : m_features.values())
+		{
+			features.addAll(chapter_features);
+		}
+		PreambleBuilder builder = new PreambleBuilder(s_pandocPath, m_pandocVersion, new File(out_directory + s_stateFolder));
+		writeOutput(new File(out_directory + s_pandocIncludeFilename), builder.getPreamble(features));
 		System.out.println("Wrote headers to " + out_directory + s_pandocIncludeFilename);
 	}
 
@@ -357,15 +1689,16 @@ public class GitbookToPandoc
 	 */
 	protected void buildForeword() throws IOException 
 	{
-		File out_dir = new File(out_directory);
-		File[] listOfFiles = out_dir.listFiles();
+		File in_dir = new File(in_directory);
+		File[] listOfFiles = in_dir.listFiles();
 		for (File file : listOfFiles) 
 		{
 			if (file.getName().equalsIgnoreCase(s_chapterFilename)) 
 			{
-				index.put(file.getAbsolutePath(), CHAPTER);
+				m_book.add(file.getName(), file.getName(), null);
 			}
 		}
+		m_book.stat(in_dir);
 	}
 
 	/**
@@ -377,12 +1710,12 @@ public class GitbookToPandoc
 	private void outputLatex() throws IOException 
 	{
 		File latex = new File(out_directory + s_headerFilename);
-		FileWriter writer = new FileWriter(latex);
 		StringBuilder includes = new StringBuilder();
 		StringBuilder graphicspath = new StringBuilder();
 		graphicspath.append("\\graphicspath{");
-		for (String filename : index.keySet()) 
+		for (Book.Chapter chapter : m_book.getChapters()) 
 		{
+			String filename = out_directory + chapter.getPath();
 			if (filename.contains("README.md"))
 			{
 				String n_filename = filename.replaceAll("\\\\", "/");
@@ -391,10 +1724,6 @@ public class GitbookToPandoc
 			}
 			File markdown = new File(filename);
 			File converted = new File(markdown.getAbsolutePath().replaceAll(".md", ".tex"));
-			if (index.get(filename) == SUBCHAPTER) 
-			{
-				shift(converted);
-			}
 			// Make relative paths
 			String path = converted.getAbsolutePath();
 			String base = new File(out_directory).getAbsolutePath();
@@ -402,48 +1731,105 @@ public class GitbookToPandoc
 			includes.append("\\subimport{" + addSlash(m_outPrefix) + "}{" + relative.replaceAll(".tex", "") + "}" + "\n");
 		}
 		graphicspath.append("}\n");
-		writer.write(graphicspath.toString());
-		writer.write(includes.toString());
-		writer.close();
+		writeOutput(latex, graphicspath.toString() + includes.toString());
 	}
-
+	
 	/**
-	 * Now gitbook demands that even subchapters are titled using #Title (H1),
-	 * hence if we convert naively using pandoc, each subchapter will become
-	 * <tt>\section</tt>, which is screwed up. So we have to push each section in the
-	 * subchapters down by one. We do that by replacing <tt>section{</tt> with
-	 * <tt>subsection{</tt>
-	 * @param converted
-	 * @throws IOException
+	 * Writes a generated file, unless it already has this content. The file
+	 * is replaced atomically, and the files actually written are recorded
+	 * in the list of changed outputs.
+	 * @param f The file
+	 * @param contents The contents of the file
+	 * @throws IOException If the file cannot be written
+	 */
+	protected void writeOutput(File f, String contents) throws IOException
+	{
+		if (FileHelper.writeIfChanged(f, contents))
+		{
+			Path base = new File(out_directory).getAbsoluteFile().toPath().normalize();
+			m_changedOutputs.add(base.relativize(f.getAbsoluteFile().toPath().normalize()).toString().replace(File.separatorChar, '/'));
+		}
+	}
+	
+	/**
+	 * Writes the list of the generated files whose contents changed during
+	 * this run, one path relative to the output directory per line, so that
+	 * later build steps can only process those
+	 * @throws IOException If the list cannot be written
 	 */
-	private static void shift(File converted) throws IOException 
+	protected void writeChangeList() throws IOException
 	{
-		String file = FileHelper.readToString(converted);
-		file = file.replaceAll("section\\{", "subsection\\{");
-		FileWriter writer = new FileWriter(converted);
-		writer.write(file);
-		writer.close();
+		StringBuilder out = new StringBuilder();
+		synchronized (m_changedOutputs)
+		{
+			for (String path : m_changedOutputs)
+			{
+				out.append(path).append("\n");
+			}
+		}
+		FileHelper.writeAtomically(new File(out_directory + s_stateFolder + s_changesFilename), out.toString().getBytes(StandardCharsets.UTF_8));
+		System.out.println(m_changedOutputs.size() + " output files changed");
 	}
 
 	/**
-	 * Gitbook and pandoc handles superscripts and subscripts differently (this
-	 * is mainly for my own project). While Gitbook demands <sub>lorem</sub> as
-	 * subscripts, Pandoc takes only ~lorem~. Hence, we replace accordingly.
-	 * Same for superscript.
+	 * Records in the manifest the digests of the source and LaTeX files of
+	 * every chapter converted by the last call to {@link #markdownToLatex(Set)},
+	 * removes the chapters that are no longer in the index, and saves it
 	 * 
-	 * @param markdown
 	 * @throws IOException
 	 */
-	private void superscriptSubscript(File markdown) throws IOException 
+	protected void updateManifest() throws IOException
+	{
+		List<String> chapters = new ArrayList<String>(m_book.size());
+		for (Book.Chapter c : m_book.getChapters())
+		{
+			String chapter = c.getPath();
+			String filename = out_directory + chapter;
+			chapters.add(chapter);
+			File latex = new File(new File(filename).getAbsolutePath().replaceAll(".md", ".tex"));
+			if (!m_converted.contains(filename) || !latex.exists())
+			{
+				continue;
+			}
+			m_manifest.put(chapter, m_sourceHashes.get(filename), m_fingerprints.get(filename), FileHelper.digest(latex), m_features.get(filename));
+		}
+		m_manifest.retainAll(chapters);
+		m_manifest.save();
+	}
+	
+	/**
+	 * Gets the path of a file of the output directory, relative to that
+	 * directory
+	 * @param filename The name of the file
+	 * @return The relative path
+	 */
+	protected String getRelativePath(String filename)
 	{
-		String file = FileHelper.readToString(markdown);
-		file = file.replaceAll("<sub>", "~");
-		file = file.replaceAll("</sub>", "~");
-		file = file.replaceAll("<sup>", "^");
-		file = file.replaceAll("</sup>", "^");
-		PrintStream ps = new PrintStream(new FileOutputStream(markdown));
-		ps.print(file);
-		ps.close();
+		if (filename.startsWith(out_directory))
+		{
+			return filename.substring(out_directory.length());
+		}
+		return filename;
+	}
+	
+	/**
+	 * Gets the file of the source directory that a file of the output
+	 * directory has been copied from. The copy itself cannot be used to
+	 * tell whether a chapter changed, as the Markdown hacks modify it.
+	 * @param filename The name of the file in the output directory
+	 * @return The source file, or the file itself if it does not come from
+	 * the source directory
+	 */
+	protected File getSourceFile(String filename)
+	{
+		String path = getRelativePath(filename);
+		File source = new File(in_directory + path);
+		Book.Chapter chapter = m_book == null ? null : m_book.getChapter(path);
+		if (chapter != null ? !chapter.exists() : !source.exists())
+		{
+			return new File(filename);
+		}
+		return source;
 	}
 
 	/**
@@ -453,7 +1839,8 @@ public class GitbookToPandoc
 	 */
 	public static void main(String[] args) 
 	{
-		if (!isPandocPresent())
+		String pandoc_version = getPandocVersion();
+		if (pandoc_version == null)
 		{
 			System.err.println("Pandoc cannot be found on this system");
 			System.exit(2);
@@ -474,18 +1861,104 @@ public class GitbookToPandoc
 			out_prefix = map.getOptionValue("prefix");
 		}
 		GitbookToPandoc gtp = new GitbookToPandoc(in_directory, out_directory, out_prefix);
+		gtp.m_pandocVersion = pandoc_version;
 		if (map.hasOption("incremental"))
 		{
 			gtp.m_incremental = true;
 		}
+		if (map.hasOption("watch"))
+		{
+			gtp.m_watch = true;
+		}
+		if (map.hasOption("fast-path"))
+		{
+			gtp.m_fastPath = new FastPathConverter();
+		}
+		if (map.hasOption("jobs"))
+		{
+			try
+			{
+				gtp.m_jobs = Integer.parseInt(map.getOptionValue("jobs").trim());
+			}
+			catch (NumberFormatException e)
+			{
+				System.err.println("Invalid number of jobs: " + map.getOptionValue("jobs"));
+				System.exit(1);
+			}
+		}
+		if (map.hasOption("assets"))
+		{
+			try
+			{
+				gtp.m_assets = TreeSync.Strategy.valueOf(map.getOptionValue("assets").trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Invalid asset strategy: " + map.getOptionValue("assets"));
+				System.exit(1);
+			}
+		}
+		if (map.hasOption("git"))
+		{
+			gtp.m_incremental = true;
+			gtp.m_git = true;
+		}
+		if (map.hasOption("only-used"))
+		{
+			gtp.m_onlyUsed = true;
+		}
+		if (map.hasOption("include"))
+		{
+			gtp.m_includes.addAll(splitGlobs(map.getOptionValue("include")));
+		}
+		if (map.hasOption("exclude"))
+		{
+			gtp.m_excludes.addAll(splitGlobs(map.getOptionValue("exclude")));
+		}
+		if (map.hasOption("timeout"))
+		{
+			try
+			{
+				gtp.m_timeout = Math.max(0, Long.parseLong(map.getOptionValue("timeout").trim()));
+			}
+			catch (NumberFormatException e)
+			{
+				System.err.println("Invalid timeout: " + map.getOptionValue("timeout"));
+				System.exit(1);
+			}
+		}
+		if (map.hasOption("batch"))
+		{
+			try
+			{
+				gtp.m_batchSize = Math.max(1, Integer.parseInt(map.getOptionValue("batch").trim()));
+			}
+			catch (NumberFormatException e)
+			{
+				System.err.println("Invalid batch size: " + map.getOptionValue("batch"));
+				System.exit(1);
+			}
+		}
 		if (map.hasOption("replace-from"))
 		{
 			String filename = map.getOptionValue("replace-from");
 			try
 			{
-				Scanner sc = new Scanner(new File(filename));
-				gtp.addLatexHack(new RegexReplace(sc));
+				Scanner sc = new Scanner(new File(filename), "UTF-8");
+				gtp.m_replaceRules = new RegexReplace(sc);
 				sc.close();
+				gtp.m_replaceRules.useGroups(map.hasOption("replace-groups"));
+				List<String> errors = gtp.m_replaceRules.getErrors();
+				if (!errors.isEmpty())
+				{
+					System.err.println("Invalid rules in replacement file " + filename + ":");
+					for (String error : errors)
+					{
+						System.err.println("  " + error);
+					}
+					System.exit(2);
+				}
+				gtp.addLatexHack(gtp.m_replaceRules);
 				System.out.println("Using replacements from " + filename);
 			}
 			catch (FileNotFoundException e) 
@@ -497,6 +1970,10 @@ public class GitbookToPandoc
 		try
 		{
 			gtp.run();
+			if (gtp.m_watch)
+			{
+				gtp.watch();
+			}
 		}
 		catch (GitbookRuntimeException e)
 		{
@@ -523,6 +2000,25 @@ public class GitbookToPandoc
 		return s;
 	}
 	
+	/**
+	 * Splits a comma-separated list of glob patterns
+	 * @param list The list
+	 * @return The patterns
+	 */
+	protected static List<String> splitGlobs(String list)
+	{
+		List<String> globs = new ArrayList<String>();
+		for (String glob : list.split(","))
+		{
+			glob = glob.trim();
+			if (!glob.isEmpty())
+			{
+				globs.add(glob);
+			}
+		}
+		return globs;
+	}
+	
 	/**
 	 * Sets up the command line parser
 	 * @return The parser
@@ -534,11 +2030,38 @@ public class GitbookToPandoc
 		parser.addArgument(new Argument().withLongName("dest").withShortName("d").withArgument("folder").withDescription("Folder where the LaTeX files will be copied"));
 		parser.addArgument(new Argument().withLongName("prefix").withShortName("p").withArgument("prefix").withDescription("Folder where the LaTeX files will be copied"));
 		parser.addArgument(new Argument().withLongName("replace-from").withShortName("r").withArgument("file").withDescription("Apply regex replacements taken from file"));
+		parser.addArgument(new Argument().withLongName("replace-groups").withDescription("Let the replacements of --replace-from refer to groups of their pattern with $1, $2, etc."));
 		parser.addArgument(new Argument().withLongName("incremental").withShortName("i").withDescription("Only process files that have been changed"));
+		parser.addArgument(new Argument().withLongName("jobs").withShortName("j").withArgument("n").withDescription("Convert up to n chapters at the same time (default: number of processors)"));
+		parser.addArgument(new Argument().withLongName("batch").withShortName("b").withArgument("n").withDescription("Send up to n chapters to the same pandoc process (default: 1)"));
+		parser.addArgument(new Argument().withLongName("assets").withShortName("a").withArgument("strategy").withDescription("Put images and other assets in the destination folder with copy, hardlink, symlink or reflink (default: copy)"));
+		parser.addArgument(new Argument().withLongName("git").withShortName("g").withDescription("Like --incremental, but ask git which files changed since the last run"));
+		parser.addArgument(new Argument().withLongName("only-used").withShortName("u").withDescription("Only copy the chapters of the summary and the files they reference"));
+		parser.addArgument(new Argument().withLongName("include").withShortName("n").withArgument("globs").withDescription("With --only-used, also copy the files that match these comma-separated patterns"));
+		parser.addArgument(new Argument().withLongName("exclude").withShortName("e").withArgument("globs").withDescription("Never copy the files and folders that match these comma-separated patterns"));
+		parser.addArgument(new Argument().withLongName("timeout").withShortName("t").withArgument("s").withDescription("Kill a pandoc process that takes more than s seconds (default: no limit)"));
+		parser.addArgument(new Argument().withLongName("fast-path").withShortName("f").withDescription("Convert chapters that only use simple Markdown without calling pandoc"));
+		parser.addArgument(new Argument().withLongName("watch").withShortName("w").withDescription("Keep watching the source folder and rebuild the chapters that change"));
 		parser.addArgument(new Argument().withLongName("wrap").withShortName("x").withDescription("Pass to Pandoc's wrap CLI option"));
 		return parser;
 	}
 	
+	/**
+	 * Gets the version of pandoc installed on this system
+	 * @return The output of {@code pandoc --version}, or {@code null} if
+	 * pandoc could not be run
+	 */
+	protected static String getPandocVersion()
+	{
+		CommandRunner runner = new CommandRunner(new String[] {s_pandocPath, "--version"});
+		runner.run();
+		if (runner.getErrorCode() != 0)
+		{
+			return null;
+		}
+		return runner.getString();
+	}
+	
 	/**
 	 * Checks if pandoc is present by attempting to run it
 	 * @return
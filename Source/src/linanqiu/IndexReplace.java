@@ -1,59 +1,102 @@
 package linanqiu;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-
-public class IndexReplace implements MarkdownHack 
+/**
+ * Replaces the index markers <tt>&lt;!--\index{...}--&gt;text&lt;!--/i--&gt;</tt>
+ * by <tt>GPGP\index{...}</tt>, which pandoc leaves alone; the marked text
+ * is dropped. The markers are put back by a LaTeX hack. A marker must
+ * begin and end on the same line.
+ */
+public class IndexReplace extends MarkdownTokenizer 
 {
-	Pattern m_pattern = Pattern.compile("<!--(\\\\index.*?)-->.*?<!--/i-->");
-	
-	protected static final String s_crlf = System.getProperty("line.separator");
-	
 	public static final IndexReplace instance = new IndexReplace();
 	
 	IndexReplace()
 	{
 		super();
+		add(new IndexMarker());
 	}
 
-	@Override
-	public void hack(File f) 
+	/**
+	 * The construct for one index marker
+	 */
+	protected static class IndexMarker implements MarkdownConstruct
 	{
-		StringBuilder out = new StringBuilder();
-		Scanner scan;
-		try 
+		/**
+		 * The text after which the index entry ends
+		 */
+		protected static final String s_entryEnd = "-->";
+
+		/**
+		 * The text that closes the marker
+		 */
+		protected static final String s_markerEnd = "<!--/i-->";
+
+		@Override
+		public String getPrefix()
+		{
+			return "<!--\\index";
+		}
+
+		@Override
+		public int rewrite(String text, int pos, int end, StringBuilder out, MarkdownTokenizer tokenizer)
 		{
-			scan = new Scanner(f);
-			while (scan.hasNextLine())
+			int line_end = pos;
+			while (line_end < end && !isLineEnd(text.charAt(line_end)))
+			{
+				line_end++;
+			}
+			int entry_start = pos + "<!--".length();
+			int entry_end = indexOf(text, s_entryEnd, entry_start + "\\index".length(), line_end);
+			if (entry_end < 0)
+			{
+				return -1;
+			}
+			int marker_end = indexOf(text, s_markerEnd, entry_end + s_entryEnd.length(), line_end);
+			if (marker_end < 0)
 			{
-				String line = scan.nextLine();
-				Matcher mat = m_pattern.matcher(line);
-				while (mat.find())
+				return -1;
+			}
+			out.append("GPGP");
+			tokenizer.append(text, entry_start, entry_end, out);
+			return marker_end + s_markerEnd.length();
+		}
+
+		@Override
+		public String toString()
+		{
+			return getPrefix();
+		}
+
+		/**
+		 * Finds a string in a region of a text
+		 * @param text The text
+		 * @param s The string
+		 * @param from The position where the region starts
+		 * @param to The position where the region ends
+		 * @return The position of the string, or -1 if it does not occur
+		 * entirely in the region
+		 */
+		protected static int indexOf(String text, String s, int from, int to)
+		{
+			for (int i = from; i + s.length() <= to; i++)
+			{
+				if (text.startsWith(s, i))
 				{
-					String index_pat = mat.group(1);
-					line = line.replace(mat.group(0), "GPGP" + index_pat);
-					//line = line.replaceAll(Pattern.quote(mat.group(0)), Pattern.quote("GPGP" + index_pat));
+					return i;
 				}
-				out.append(line).append(s_crlf);
 			}
-			scan.close();
-			FileWriter fw = new FileWriter(f);
-			fw.write(out.toString());
-			fw.close();
+			return -1;
 		}
-		catch (FileNotFoundException e) 
-		{
-			// Do nothing
-		} 
-		catch (IOException e) 
+
+		/**
+		 * Checks whether a character ends a line, in the same way as the
+		 * <tt>.</tt> of a regular expression
+		 * @param c The character
+		 * @return true if the character ends a line
+		 */
+		protected static boolean isLineEnd(char c)
 		{
-			// Do nothing
+			return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
 		}
 	}
-
 }
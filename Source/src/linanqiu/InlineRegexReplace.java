@@ -1,44 +1,155 @@
 package linanqiu;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
-
-public class InlineRegexReplace implements LatexHack 
+/**
+ * Applies the replacements a chapter asks for with comments of the form
+ * <tt>&lt;!-- replace X with Y --&gt;</tt> in its Markdown file, where X is
+ * a regular expression and Y may refer to its groups. Directives whose
+ * expression is not valid are ignored.
+ * <p>
+ * The directives are collected from the Markdown text by the hack returned
+ * by {@link #getCollector()}, which must be among the Markdown hacks; the
+ * LaTeX stage then applies them as precompiled rules, without reading the
+ * Markdown file again. Chapters without directives have no rules.
+ */
+public class InlineRegexReplace implements RuleBasedHack
 {
 	Pattern m_pattern = Pattern.compile("<!-- replace (.*?) (with|by) (.*?) -->");
-	
+
+	/**
+	 * The rules collected for each chapter, by the name of its Markdown file
+	 */
+	protected final Map<String,List<Replacement>> m_rules = new ConcurrentHashMap<String,List<Replacement>>();
+
+	/**
+	 * The Markdown hack collecting the directives
+	 */
+	protected final MarkdownHack m_collector = new DirectiveCollector();
+
+	/**
+	 * Gets the Markdown hack that collects the directives of each chapter
+	 * for this hack
+	 * @return The hack
+	 */
+	public MarkdownHack getCollector()
+	{
+		return m_collector;
+	}
+
 	@Override
-	public String hack(String filename, String file_contents) 
+	public List<Replacement> getReplacements(String filename)
 	{
 		String md_filename = filename.replace(".tex", ".md");
-		Scanner scan;
-		try 
+		List<Replacement> rules = m_rules.get(md_filename);
+		if (rules == null)
 		{
-			scan = new Scanner(new File(md_filename));
-			while (scan.hasNextLine())
+			// The chapter did not go through the collector: read its directives
+			// from the file
+			try
+			{
+				Scanner scan = new Scanner(new File(md_filename), "UTF-8");
+				rules = collect(scan);
+				scan.close();
+			}
+			catch (FileNotFoundException e)
 			{
-				String line = scan.nextLine().trim();
-				if (line.startsWith("<!-- replace"))
+				rules = Collections.emptyList();
+			}
+			m_rules.put(md_filename, rules);
+		}
+		return rules;
+	}
+
+	@Override
+	public boolean isFileSpecific()
+	{
+		return true;
+	}
+
+	@Override
+	public String hack(String filename, String file_contents)
+	{
+		for (Replacement r : getReplacements(filename))
+		{
+			file_contents = r.apply(file_contents);
+		}
+		return file_contents;
+	}
+
+	/**
+	 * Reads the directives of a chapter
+	 * @param scan A scanner on the Markdown text of the chapter
+	 * @return The rules, in the order the directives appear
+	 */
+	protected List<Replacement> collect(Scanner scan)
+	{
+		List<Replacement> rules = null;
+		while (scan.hasNextLine())
+		{
+			String line = scan.nextLine().trim();
+			if (line.startsWith("<!-- replace"))
+			{
+				Matcher mat = m_pattern.matcher(line);
+				if (mat.find())
 				{
-					Matcher mat = m_pattern.matcher(line);
-					if (mat.find())
+					if (rules == null)
+					{
+						rules = new ArrayList<Replacement>();
+					}
+					try
+					{
+						rules.add(Replacement.fromRegex(mat.group(1), mat.group(3), true));
+					}
+					catch (PatternSyntaxException e)
 					{
-						String find_pat = mat.group(1);
-						String replace_pat = mat.group(3);
-						file_contents = file_contents.replaceAll(find_pat, replace_pat);
+						System.err.println("Ignoring invalid directive " + line + ": " + e.getDescription());
 					}
 				}
 			}
-			scan.close();
 		}
-		catch (FileNotFoundException e) 
+		if (rules == null)
 		{
-			// Do nothing
+			return Collections.emptyList();
 		}
-		return file_contents;
+		return rules;
 	}
 
+	/**
+	 * Collects the directives of a chapter while its Markdown text goes
+	 * through the Markdown hacks. The text itself is left untouched.
+	 */
+	protected class DirectiveCollector implements MarkdownHack, FingerprintedHack
+	{
+		@Override
+		public String hack(String filename, String file_contents)
+		{
+			List<Replacement> rules = Collections.emptyList();
+			if (file_contents.contains("<!-- replace"))
+			{
+				Scanner scan = new Scanner(file_contents);
+				rules = collect(scan);
+				scan.close();
+			}
+			m_rules.put(filename, rules);
+			return file_contents;
+		}
+
+		@Override
+		public String getFingerprint(String filename)
+		{
+			// The directives are part of the Markdown file, whose digest is
+			// already in the manifest
+			return "";
+		}
+	}
 }
@@ -0,0 +1,199 @@
+package linanqiu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies a list of LaTeX hacks to the files of a book. Consecutive hacks
+ * that implement {@link RuleBasedHack} have their replacements fused, so
+ * that they are applied in as few passes over the file as possible;
+ * the other hacks are applied on their own, at their place in the list.
+ * The result is the same as calling each hack in turn.
+ * <p>
+ * The hacks can depend on the file, so the replacements are obtained for
+ * each file. The fused replacements are compiled once for each distinct
+ * list of replacements, and shared by all the files that have this list;
+ * the least recently used lists are forgotten beyond
+ * {@link #s_maxCompiled}. The replacements of hacks that are specific to
+ * each file are applied in a separate pass, which is compiled for each
+ * file and not kept, so that they do not make the other lists distinct.
+ */
+public class LatexHackChain
+{
+	/**
+	 * The maximum number of lists of replacements whose fused passes are
+	 * kept
+	 */
+	protected static final int s_maxCompiled = 32;
+
+	/**
+	 * The hacks, in the order they must be applied
+	 */
+	protected final List<LatexHack> m_hacks;
+
+	/**
+	 * The fused replacements, for each list of replacements found so far
+	 */
+	protected final Map<List<Replacement>,List<FusedReplacements>> m_compiled;
+
+	/**
+	 * Creates a new chain
+	 * @param hacks The hacks, in the order they must be applied. The list
+	 * is not copied, so that hacks added to it later are also applied.
+	 */
+	public LatexHackChain(List<LatexHack> hacks)
+	{
+		super();
+		m_hacks = hacks;
+		m_compiled = new LinkedHashMap<List<Replacement>,List<FusedReplacements>>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Replacement>,List<FusedReplacements>> eldest)
+			{
+				return size() > s_maxCompiled;
+			}
+		};
+	}
+
+	/**
+	 * Applies the hacks to a file
+	 * @param filename The name of the file
+	 * @param contents The contents of the file
+	 * @return The contents, once all the hacks have been applied
+	 */
+	public String apply(String filename, String contents)
+	{
+		return apply(filename, contents, Collections.<Replacement>emptyList());
+	}
+
+	/**
+	 * Applies the hacks to a file, followed by some replacements of its own.
+	 * The replacements, which must not be specific to the file, are fused
+	 * with those of the last hacks when possible.
+	 * @param filename The name of the file
+	 * @param contents The contents of the file
+	 * @param last The replacements to apply after the hacks
+	 * @return The contents, once all the hacks and replacements have been
+	 * applied
+	 */
+	public String apply(String filename, String contents, List<Replacement> last)
+	{
+		// The replacements of consecutive hacks that are all specific to the
+		// file, or all shared
+		List<Replacement> rules = new ArrayList<Replacement>();
+		boolean file_specific = false;
+		for (LatexHack hack : m_hacks)
+		{
+			List<Replacement> hack_rules = null;
+			if (hack instanceof RuleBasedHack)
+			{
+				hack_rules = ((RuleBasedHack) hack).getReplacements(filename);
+			}
+			if (hack_rules != null)
+			{
+				if (hack_rules.isEmpty())
+				{
+					continue;
+				}
+				boolean specific = ((RuleBasedHack) hack).isFileSpecific();
+				if (specific != file_specific)
+				{
+					contents = applyRules(rules, contents, file_specific);
+					rules = new ArrayList<Replacement>();
+					file_specific = specific;
+				}
+				rules.addAll(hack_rules);
+				continue;
+			}
+			contents = applyRules(rules, contents, file_specific);
+			rules = new ArrayList<Replacement>();
+			contents = hack.hack(filename, contents);
+		}
+		if (file_specific && !last.isEmpty())
+		{
+			contents = applyRules(rules, contents, true);
+			rules = new ArrayList<Replacement>();
+			file_specific = false;
+		}
+		rules.addAll(last);
+		return applyRules(rules, contents, file_specific);
+	}
+
+	/**
+	 * Applies a list of replacements to a string
+	 * @param rules The replacements
+	 * @param contents The string
+	 * @return The string with the replacements applied
+	 */
+	protected String applyRules(List<Replacement> rules, String contents)
+	{
+		return applyRules(rules, contents, false);
+	}
+
+	/**
+	 * Applies a list of replacements to a string
+	 * @param rules The replacements
+	 * @param contents The string
+	 * @param file_specific Whether the replacements are specific to this
+	 * string, in which case their fused passes are not kept
+	 * @return The string with the replacements applied
+	 */
+	protected String applyRules(List<Replacement> rules, String contents, boolean file_specific)
+	{
+		if (rules.isEmpty())
+		{
+			return contents;
+		}
+		List<FusedReplacements> passes = file_specific ? fuse(rules) : compile(rules);
+		for (FusedReplacements fused : passes)
+		{
+			contents = fused.apply(contents);
+		}
+		return contents;
+	}
+
+	/**
+	 * Fuses a list of replacements into as few passes as possible, or gets
+	 * the passes already compiled for this list
+	 * @param rules The replacements
+	 * @return The passes to apply, in order
+	 */
+	protected synchronized List<FusedReplacements> compile(List<Replacement> rules)
+	{
+		List<FusedReplacements> passes = m_compiled.get(rules);
+		if (passes != null)
+		{
+			return passes;
+		}
+		passes = fuse(rules);
+		m_compiled.put(new ArrayList<Replacement>(rules), passes);
+		return passes;
+	}
+
+	/**
+	 * Fuses a list of replacements into as few passes as possible
+	 * @param rules The replacements
+	 * @return The passes to apply, in order
+	 */
+	protected static List<FusedReplacements> fuse(List<Replacement> rules)
+	{
+		List<FusedReplacements> passes = new ArrayList<FusedReplacements>();
+		FusedReplacements current = new FusedReplacements();
+		passes.add(current);
+		for (Replacement r : rules)
+		{
+			if (!current.add(r))
+			{
+				current = new FusedReplacements();
+				passes.add(current);
+				current.add(r);
+			}
+		}
+		return passes;
+	}
+}
@@ -0,0 +1,48 @@
+package linanqiu;
+
+/**
+ * A construct made of a fixed string, which is replaced by another one
+ */
+public class LiteralConstruct implements MarkdownConstruct
+{
+	/**
+	 * The string to look for
+	 */
+	protected final String m_find;
+
+	/**
+	 * The string it is replaced with
+	 */
+	protected final String m_replace;
+
+	/**
+	 * Creates a new literal construct
+	 * @param find The string to look for
+	 * @param replace The string it is replaced with
+	 */
+	public LiteralConstruct(String find, String replace)
+	{
+		super();
+		m_find = find;
+		m_replace = replace;
+	}
+
+	@Override
+	public String getPrefix()
+	{
+		return m_find;
+	}
+
+	@Override
+	public int rewrite(String text, int pos, int end, StringBuilder out, MarkdownTokenizer tokenizer)
+	{
+		out.append(m_replace);
+		return pos + m_find.length();
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_find + " -> " + m_replace;
+	}
+}
@@ -0,0 +1,32 @@
+package linanqiu;
+
+/**
+ * A construct of the Markdown text that a {@link MarkdownTokenizer}
+ * rewrites. Every occurrence of the construct starts with a fixed prefix,
+ * which the tokenizer uses to find the places where the construct may
+ * occur.
+ */
+public interface MarkdownConstruct
+{
+	/**
+	 * Gets the text every occurrence of the construct starts with
+	 * @return The text, which must not be empty
+	 */
+	public String getPrefix();
+
+	/**
+	 * Rewrites an occurrence of the construct
+	 * @param text The text being scanned
+	 * @param pos The position of the prefix in the text
+	 * @param end The position where the scanned region of the text ends;
+	 * the construct must not extend past it
+	 * @param out The builder the rewritten text is appended to. Nothing may
+	 * be appended to it if the construct does not occur at this position.
+	 * @param tokenizer The tokenizer, to which the construct can hand back
+	 * parts of its occurrence so that the other constructs are rewritten in
+	 * them
+	 * @return The position in the text after the occurrence, or -1 if the
+	 * construct does not occur at this position
+	 */
+	public int rewrite(String text, int pos, int end, StringBuilder out, MarkdownTokenizer tokenizer);
+}
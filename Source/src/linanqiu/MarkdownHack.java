@@ -1,16 +1,18 @@
 package linanqiu;
 
-import java.io.File;
-
 /**
- * Modifies the Markdown code before sending it to Pandoc
+ * Modifies the Markdown code before sending it to Pandoc. Hacks work on
+ * the text of a chapter in memory and are chained: each one receives the
+ * output of the previous one. The Markdown file itself is never modified.
  * @author Sylvain Hallé
  */
 public interface MarkdownHack 
 {
 	/**
 	 * Takes the contents of a Markdown file and modifies it in some way
-	 * @param f The file to hack
+	 * @param filename The name of the file being modified
+	 * @param file_contents The contents of the file
+	 * @return The contents of the modified file
 	 */
-	public void hack(File f);
+	public String hack(String filename, String file_contents);
 }
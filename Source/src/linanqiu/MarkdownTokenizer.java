@@ -0,0 +1,166 @@
+package linanqiu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a set of constructs of a Markdown text in a single forward
+ * scan. The constructs are indexed by the first character of their
+ * prefix, so that the scan only looks at the positions where one of them
+ * may start; the text between occurrences is copied as is, and a text in
+ * which no construct occurs is returned without being copied.
+ * <p>
+ * When several constructs can occur at the same position, the one added
+ * first wins. The result is the same as rewriting each construct in its
+ * own pass, as long as the constructs cannot produce or break an
+ * occurrence of one another.
+ */
+public class MarkdownTokenizer implements MarkdownHack, FingerprintedHack
+{
+	/**
+	 * The constructs, in the order they were added
+	 */
+	protected final List<MarkdownConstruct> m_constructs;
+
+	/**
+	 * The constructs, by the first character of their prefix
+	 */
+	protected final Map<Character,List<MarkdownConstruct>> m_byFirst;
+
+	/**
+	 * Creates a tokenizer that rewrites no construct
+	 */
+	public MarkdownTokenizer()
+	{
+		super();
+		m_constructs = new ArrayList<MarkdownConstruct>();
+		m_byFirst = new HashMap<Character,List<MarkdownConstruct>>();
+	}
+
+	/**
+	 * Adds a construct to rewrite
+	 * @param c The construct
+	 * @return This tokenizer
+	 */
+	public MarkdownTokenizer add(MarkdownConstruct c)
+	{
+		m_constructs.add(c);
+		char first = c.getPrefix().charAt(0);
+		List<MarkdownConstruct> list = m_byFirst.get(first);
+		if (list == null)
+		{
+			list = new ArrayList<MarkdownConstruct>();
+			m_byFirst.put(first, list);
+		}
+		list.add(c);
+		return this;
+	}
+
+	/**
+	 * Adds all the constructs of another tokenizer
+	 * @param t The tokenizer
+	 * @return This tokenizer
+	 */
+	public MarkdownTokenizer addAll(MarkdownTokenizer t)
+	{
+		for (MarkdownConstruct c : t.m_constructs)
+		{
+			add(c);
+		}
+		return this;
+	}
+
+	@Override
+	public String hack(String filename, String file_contents)
+	{
+		StringBuilder out = new StringBuilder(0);
+		if (!scan(file_contents, 0, file_contents.length(), out))
+		{
+			return file_contents;
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Rewrites the constructs in a region of a text
+	 * @param text The text
+	 * @param begin The position where the region starts
+	 * @param end The position where the region ends
+	 * @param out The builder the rewritten region is appended to. If no
+	 * construct occurs in the region, nothing is appended.
+	 * @return true if a construct occurs in the region
+	 */
+	public boolean scan(String text, int begin, int end, StringBuilder out)
+	{
+		int start_length = out.length();
+		boolean found = false;
+		int last = begin;
+		for (int pos = begin; pos < end; pos++)
+		{
+			List<MarkdownConstruct> candidates = m_byFirst.get(text.charAt(pos));
+			if (candidates == null)
+			{
+				continue;
+			}
+			for (MarkdownConstruct c : candidates)
+			{
+				if (!text.startsWith(c.getPrefix(), pos) || pos + c.getPrefix().length() > end)
+				{
+					continue;
+				}
+				if (!found)
+				{
+					out.ensureCapacity(start_length + end - begin + 16);
+					found = true;
+				}
+				int mark = out.length();
+				out.append(text, last, pos);
+				int after = c.rewrite(text, pos, end, out, this);
+				if (after < 0)
+				{
+					out.setLength(mark);
+					continue;
+				}
+				last = after;
+				pos = after - 1;
+				break;
+			}
+		}
+		if (last == begin)
+		{
+			// Nothing was rewritten
+			out.setLength(start_length);
+			return false;
+		}
+		out.append(text, last, end);
+		return true;
+	}
+
+	/**
+	 * Appends a region of a text with its constructs rewritten
+	 * @param text The text
+	 * @param begin The position where the region starts
+	 * @param end The position where the region ends
+	 * @param out The builder the region is appended to
+	 */
+	public void append(String text, int begin, int end, StringBuilder out)
+	{
+		if (!scan(text, begin, end, out))
+		{
+			out.append(text, begin, end);
+		}
+	}
+
+	@Override
+	public String getFingerprint(String filename)
+	{
+		StringBuilder out = new StringBuilder();
+		for (MarkdownConstruct c : m_constructs)
+		{
+			out.append(c.getClass().getName()).append(" ").append(c).append("\n");
+		}
+		return out.toString();
+	}
+}
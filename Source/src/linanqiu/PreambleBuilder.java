@@ -0,0 +1,377 @@
+package linanqiu;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ca.uqac.lif.labpal.CommandRunner;
+import ca.uqac.lif.labpal.FileHelper;
+
+/**
+ * Produces the LaTeX preamble that pandoc would generate for the book.
+ * What pandoc puts in its preamble only depends on a handful of features of
+ * the document (tables, highlighted code, code in footnotes, SVG images,
+ * strikeout, etc.). Rather than
+ * calling pandoc on the whole book, the Markdown of each chapter is scanned
+ * for these features, and pandoc is called on a small sample document that
+ * has the same features. The resulting preamble is cached for each set of
+ * features, so that it is only computed again when a new feature appears
+ * in the book or when pandoc is upgraded.
+ */
+public class PreambleBuilder
+{
+	/**
+	 * Feature: the document contains a table
+	 */
+	public static final String TABLES = "tables";
+
+	/**
+	 * Feature: the document contains a footnote
+	 */
+	public static final String FOOTNOTES = "footnotes";
+
+	/**
+	 * Feature: the document contains struck out text
+	 */
+	public static final String STRIKEOUT = "strikeout";
+
+	/**
+	 * Feature: the document contains an image
+	 */
+	public static final String IMAGES = "images";
+
+	/**
+	 * Feature: the document contains subscripts or superscripts
+	 */
+	public static final String SUBSCRIPT = "subscript";
+
+	/**
+	 * Feature: the document contains an SVG image
+	 */
+	public static final String SVG = "svg";
+
+	/**
+	 * Feature: the document contains a code block inside a footnote
+	 */
+	public static final String VERBATIM_IN_NOTE = "verbatim-in-note";
+
+	/**
+	 * Prefix of the features giving the language of a code block
+	 */
+	public static final String HIGHLIGHTING = "highlighting:";
+
+	/**
+	 * Prefix of the features giving the language of inline code, such as
+	 * <code>`x`{.java}</code>
+	 */
+	public static final String INLINE_HIGHLIGHTING = "inline-highlighting:";
+
+	/**
+	 * Matches the separator line of a pipe table
+	 */
+	protected static final Pattern s_pipeTable = Pattern.compile("^\\s*\\|?\\s*:?-+:?\\s*(\\|\\s*:?-+:?\\s*)+\\|?\\s*$|^\\s*\\|\\s*:?-+:?\\s*\\|\\s*$");
+
+	/**
+	 * Matches the separator line of a grid table or a simple table
+	 */
+	protected static final Pattern s_otherTable = Pattern.compile("^\\+([-=:]+\\+)+$|^\\s*-{3,}(\\s+-{3,})+\\s*$");
+
+	/**
+	 * Matches subscripts and superscripts, either in HTML or in pandoc's
+	 * syntax
+	 */
+	protected static final Pattern s_subscript = Pattern.compile("<su[bp]>|(^|[^~\\\\])~[^~\\s]+~|\\^[^\\^\\s\\[]+\\^");
+
+	/**
+	 * Matches inline code followed by attributes; the first group is the
+	 * text between the braces
+	 */
+	protected static final Pattern s_inlineCode = Pattern.compile("`[^`]+`\\{([^}]*)\\}");
+
+	/**
+	 * Matches the beginning of the definition of a footnote
+	 */
+	protected static final Pattern s_noteStart = Pattern.compile("^ {0,3}\\[\\^[^\\]]+\\]:");
+
+	/**
+	 * Matches the definition of a link, which reference-style images
+	 * point to
+	 */
+	protected static final Pattern s_linkDefinition = Pattern.compile("^ {0,3}\\[[^\\]]+\\]:");
+
+	/**
+	 * Matches the path of an SVG file
+	 */
+	protected static final Pattern s_svg = Pattern.compile("\\.svg([)\\s\"'#?>]|$)", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * The path to the pandoc executable
+	 */
+	protected final String m_pandocPath;
+
+	/**
+	 * The output of {@code pandoc --version}, which is part of the key of
+	 * cached preambles
+	 */
+	protected final String m_pandocVersion;
+
+	/**
+	 * The folder where preambles are cached
+	 */
+	protected final File m_cacheFolder;
+
+	/**
+	 * Creates a new preamble builder
+	 * @param pandoc_path The path to the pandoc executable
+	 * @param pandoc_version The output of {@code pandoc --version}
+	 * @param cache_folder The folder where preambles are cached
+	 */
+	public PreambleBuilder(String pandoc_path, String pandoc_version, File cache_folder)
+	{
+		super();
+		m_pandocPath = pandoc_path;
+		m_pandocVersion = pandoc_version;
+		m_cacheFolder = cache_folder;
+	}
+
+	/**
+	 * Finds the features of a Markdown document that have an influence on
+	 * the preamble generated by pandoc
+	 * @param markdown The contents of the document
+	 * @return The set of features
+	 */
+	public static Set<String> scanFeatures(String markdown)
+	{
+		Set<String> features = new TreeSet<String>();
+		String fence = null;
+		boolean in_note = false;
+		Scanner scan = new Scanner(markdown);
+		while (scan.hasNextLine())
+		{
+			String line = scan.nextLine();
+			String trimmed = line.trim();
+			if (fence != null)
+			{
+				// Inside a code block
+				if (trimmed.startsWith(fence))
+				{
+					fence = null;
+				}
+				continue;
+			}
+			if (s_noteStart.matcher(line).find())
+			{
+				in_note = true;
+			}
+			else if (!trimmed.isEmpty() && !line.startsWith("    ") && !line.startsWith("\t"))
+			{
+				// A line that is not indented ends the footnote
+				in_note = false;
+			}
+			else if (in_note && (line.startsWith("        ") || line.startsWith("\t\t")))
+			{
+				// An indented code block inside the footnote
+				features.add(VERBATIM_IN_NOTE);
+			}
+			if (trimmed.startsWith("```") || trimmed.startsWith("~~~"))
+			{
+				fence = trimmed.substring(0, 3);
+				if (in_note)
+				{
+					features.add(VERBATIM_IN_NOTE);
+				}
+				String language = getLanguage(trimmed.substring(3));
+				if (!language.isEmpty())
+				{
+					features.add(HIGHLIGHTING + language);
+				}
+				continue;
+			}
+			if (line.contains("-") && (s_pipeTable.matcher(line).matches() || s_otherTable.matcher(line).matches()))
+			{
+				features.add(TABLES);
+			}
+			if (line.contains("[^") || line.contains("^["))
+			{
+				features.add(FOOTNOTES);
+			}
+			if (line.contains("~~"))
+			{
+				features.add(STRIKEOUT);
+			}
+			if (line.contains("!["))
+			{
+				features.add(IMAGES);
+			}
+			if ((line.contains("![") || s_linkDefinition.matcher(line).find()) && s_svg.matcher(line).find())
+			{
+				features.add(SVG);
+			}
+			if (line.contains("`{"))
+			{
+				Matcher mat = s_inlineCode.matcher(line);
+				while (mat.find())
+				{
+					String language = getLanguage(mat.group(1));
+					if (!language.isEmpty())
+					{
+						features.add(INLINE_HIGHLIGHTING + language);
+					}
+				}
+			}
+			if (s_subscript.matcher(line).find())
+			{
+				features.add(SUBSCRIPT);
+			}
+		}
+		scan.close();
+		return features;
+	}
+
+	/**
+	 * Extracts the language of a fenced code block from the text that
+	 * follows the fence, such as {@code java} or <code>{.java .numberLines}</code>,
+	 * or of inline code from its attributes. Identifiers and key-value
+	 * attributes are skipped.
+	 * @param info The text after the fence, or the attributes
+	 * @return The language, in lowercase, or the empty string if there is none
+	 */
+	protected static String getLanguage(String info)
+	{
+		info = info.replaceAll("[`~{}]", " ").trim();
+		String language = "";
+		for (String token : info.split("\\s+"))
+		{
+			if (!token.startsWith("#") && !token.contains("="))
+			{
+				language = token;
+				break;
+			}
+		}
+		if (language.startsWith("."))
+		{
+			language = language.substring(1);
+		}
+		if (!language.matches("[\\w+#-]+"))
+		{
+			return "";
+		}
+		return language.toLowerCase();
+	}
+
+	/**
+	 * Gets the preamble pandoc generates for a document with a given set of
+	 * features, from the cache if it has already been computed
+	 * @param features The features
+	 * @return The preamble
+	 * @throws IOException If pandoc cannot be run, or if the cache cannot
+	 * be written
+	 */
+	public String getPreamble(Collection<String> features) throws IOException
+	{
+		Set<String> sorted = new TreeSet<String>(features);
+		StringBuilder key = new StringBuilder();
+		key.append(m_pandocVersion).append("\n");
+		for (String feature : sorted)
+		{
+			key.append(feature).append("\n");
+		}
+		File cached = new File(m_cacheFolder, "preamble-" + FileHelper.digest(key.toString()) + ".tex");
+		if (cached.exists())
+		{
+			return FileHelper.readToString(cached);
+		}
+		CommandRunner runner = new CommandRunner(new String[] {m_pandocPath, "--standalone", "-f", "markdown", "-t", "latex"}, getSample(sorted));
+		runner.run();
+		if (runner.getErrorCode() != 0)
+		{
+			throw new IOException("pandoc exited with code " + runner.getErrorCode() + " when generating the preamble");
+		}
+		String preamble = extractPreamble(runner.getString());
+		FileHelper.writeFromString(cached, preamble);
+		return preamble;
+	}
+
+	/**
+	 * Builds a small Markdown document that has a given set of features
+	 * @param features The features
+	 * @return The document
+	 */
+	protected static String getSample(Set<String> features)
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("Text.\n\n");
+		for (String feature : features)
+		{
+			if (feature.equals(TABLES))
+			{
+				out.append("| A | B |\n|---|---|\n| 1 | 2 |\n\n");
+			}
+			else if (feature.equals(FOOTNOTES))
+			{
+				out.append("Text[^1].\n\n[^1]: Note.\n\n");
+			}
+			else if (feature.equals(STRIKEOUT))
+			{
+				out.append("~~Text~~\n\n");
+			}
+			else if (feature.equals(IMAGES))
+			{
+				out.append("![Image](image.png)\n\n");
+			}
+			else if (feature.equals(SUBSCRIPT))
+			{
+				out.append("H~2~O and x^2^\n\n");
+			}
+			else if (feature.equals(SVG))
+			{
+				out.append("![Image](image.svg)\n\n");
+			}
+			else if (feature.equals(VERBATIM_IN_NOTE))
+			{
+				out.append("Text[^code].\n\n[^code]: Note.\n\n    ```\n    code\n    ```\n\n");
+			}
+			else if (feature.startsWith(HIGHLIGHTING))
+			{
+				out.append("```").append(feature.substring(HIGHLIGHTING.length())).append("\ncode\n```\n\n");
+			}
+			else if (feature.startsWith(INLINE_HIGHLIGHTING))
+			{
+				out.append("Text `code`{.").append(feature.substring(INLINE_HIGHLIGHTING.length())).append("}.\n\n");
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Extracts the preamble from a standalone LaTeX document, leaving out
+	 * the document class
+	 * @param latex The document
+	 * @return The lines that come before the beginning of the document
+	 */
+	protected static String extractPreamble(String latex)
+	{
+		StringBuilder out = new StringBuilder();
+		Scanner scan = new Scanner(latex);
+		while (scan.hasNextLine())
+		{
+			String line = scan.nextLine();
+			if (line.contains("documentclass"))
+			{
+				continue;
+			}
+			if (line.contains("\\begin{document}"))
+			{
+				break;
+			}
+			out.append(line).append("\n");
+		}
+		scan.close();
+		return out.toString();
+	}
+}
@@ -1,10 +1,13 @@
 package linanqiu;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Moves all section titles one level in the hierarchy, so that
  * level 1 headers become chapters instead of sections.
  */
-public class PromoteTitles implements LatexHack 
+public class PromoteTitles implements RuleBasedHack 
 {
 	public static PromoteTitles instance = new PromoteTitles();
 	
@@ -21,4 +24,20 @@ public class PromoteTitles implements LatexHack
 		contents = contents.replaceAll("\\\\subsubsection\\{", "\\\\subsection{");
 		return contents;
 	}
+
+	@Override
+	public List<Replacement> getReplacements(String filename)
+	{
+		List<Replacement> rules = new ArrayList<Replacement>(3);
+		rules.add(new Replacement("\\section{", "\\chapter{"));
+		rules.add(new Replacement("\\subsection{", "\\section{"));
+		rules.add(new Replacement("\\subsubsection{", "\\subsection{"));
+		return rules;
+	}
+
+	@Override
+	public boolean isFileSpecific()
+	{
+		return false;
+	}
 }
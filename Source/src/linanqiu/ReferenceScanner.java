@@ -0,0 +1,225 @@
+package linanqiu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ca.uqac.lif.labpal.FileHelper;
+
+/**
+ * Finds the files of the source folder that a set of chapters uses: the
+ * images they show, the files their link definitions point to, and the
+ * files they include with GitBook's {@code {% include %}} tag. Included
+ * Markdown files are scanned in turn. Paths are resolved against the folder
+ * of the file that contains them, or against the source folder if they
+ * start with a slash; references to other sites, and to files outside the
+ * source folder or that do not exist, are ignored.
+ */
+public class ReferenceScanner
+{
+	/**
+	 * Images: {@code ![caption](path "title")}
+	 */
+	protected static final Pattern s_image = Pattern.compile("!\\[[^\\]]*\\]\\(\\s*<?([^)\\s>]+)");
+
+	/**
+	 * HTML images: {@code <img src="path">}
+	 */
+	protected static final Pattern s_htmlImage = Pattern.compile("<img\\s[^>]*?src\\s*=\\s*[\"']([^\"']+)[\"']", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Link definitions, which reference-style images point to:
+	 * {@code [label]: path}
+	 */
+	protected static final Pattern s_definition = Pattern.compile("^ {0,3}\\[[^\\]]+\\]:\\s*<?([^\\s>]+)", Pattern.MULTILINE);
+
+	/**
+	 * GitBook includes: {@code {% include "path" %}}
+	 */
+	protected static final Pattern s_include = Pattern.compile("\\{%-?\\s*include\\s+[\"']([^\"']+)[\"']");
+
+	/**
+	 * The beginning of a URL that points to another site, or to a part of
+	 * the same page
+	 */
+	protected static final Pattern s_external = Pattern.compile("^([a-zA-Z][a-zA-Z0-9+.-]*:|//|#)");
+
+	/**
+	 * The source folder
+	 */
+	protected final Path m_root;
+
+	/**
+	 * Creates a new scanner
+	 * @param root The source folder
+	 */
+	public ReferenceScanner(File root)
+	{
+		super();
+		m_root = root.toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Finds the files used by a set of chapters
+	 * @param chapters The paths of the chapters, relative to the source
+	 * folder
+	 * @return The paths of the chapters and of the files they use, relative
+	 * to the source folder and with "/" as the separator
+	 * @throws IOException If a file cannot be read
+	 */
+	public Set<String> scan(Collection<String> chapters) throws IOException
+	{
+		Set<String> used = new LinkedHashSet<String>();
+		Deque<Path> to_scan = new ArrayDeque<Path>();
+		for (String chapter : chapters)
+		{
+			Path p = resolve(m_root, chapter);
+			if (p != null && used.add(getRelativePath(p)))
+			{
+				to_scan.add(p);
+			}
+		}
+		while (!to_scan.isEmpty())
+		{
+			Path file = to_scan.poll();
+			String contents = FileHelper.readToString(file.toFile());
+			if (contents == null)
+			{
+				continue;
+			}
+			Path folder = file.getParent();
+			addAll(s_image, contents, folder, used, null);
+			addAll(s_htmlImage, contents, folder, used, null);
+			addAll(s_definition, contents, folder, used, null);
+			addAll(s_include, contents, folder, used, to_scan);
+		}
+		return used;
+	}
+
+	/**
+	 * Adds the files referenced by all the matches of a pattern
+	 * @param pattern The pattern; its first group is the reference
+	 * @param contents The contents of the file being scanned
+	 * @param folder The folder of the file being scanned
+	 * @param used The set where the relative paths of the files are added
+	 * @param to_scan If not null, the queue where the Markdown files found
+	 * for the first time are added
+	 */
+	protected void addAll(Pattern pattern, String contents, Path folder, Set<String> used, Deque<Path> to_scan)
+	{
+		Matcher m = pattern.matcher(contents);
+		while (m.find())
+		{
+			Path p = resolve(folder, m.group(1));
+			if (p == null || !used.add(getRelativePath(p)))
+			{
+				continue;
+			}
+			if (to_scan != null && p.getFileName().toString().toLowerCase().endsWith(".md"))
+			{
+				to_scan.add(p);
+			}
+		}
+	}
+
+	/**
+	 * Resolves a reference found in a file
+	 * @param folder The folder of the file
+	 * @param reference The reference
+	 * @return The absolute path of the file referenced, or {@code null} if
+	 * it is not a file of the source folder
+	 */
+	protected Path resolve(Path folder, String reference)
+	{
+		if (s_external.matcher(reference).find())
+		{
+			return null;
+		}
+		int cut = reference.indexOf('#');
+		if (cut >= 0)
+		{
+			reference = reference.substring(0, cut);
+		}
+		cut = reference.indexOf('?');
+		if (cut >= 0)
+		{
+			reference = reference.substring(0, cut);
+		}
+		if (reference.isEmpty())
+		{
+			return null;
+		}
+		Path p = getFile(folder, reference);
+		if (p == null && reference.indexOf('%') >= 0)
+		{
+			// The reference may be URL-encoded, as in "my%20image.png"
+			try
+			{
+				p = getFile(folder, URLDecoder.decode(reference.replace("+", "%2B"), "UTF-8"));
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				// Cannot happen with UTF-8
+			}
+			catch (IllegalArgumentException e)
+			{
+				// Not a valid encoding: keep the reference as is
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Gets an existing file of the source folder
+	 * @param folder The folder relative paths are resolved against
+	 * @param path The path
+	 * @return The absolute path of the file, or {@code null} if it does
+	 * not exist or is outside the source folder
+	 */
+	protected Path getFile(Path folder, String path)
+	{
+		Path p;
+		try
+		{
+			if (path.startsWith("/"))
+			{
+				p = m_root.resolve(path.substring(1));
+			}
+			else
+			{
+				p = folder.resolve(path);
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Not a valid path on this system
+			return null;
+		}
+		p = p.normalize();
+		if (!p.startsWith(m_root) || !Files.isRegularFile(p))
+		{
+			return null;
+		}
+		return p;
+	}
+
+	/**
+	 * Gets the path of a file relative to the source folder
+	 * @param p The absolute path of the file
+	 * @return The relative path, with "/" as the separator
+	 */
+	protected String getRelativePath(Path p)
+	{
+		return m_root.relativize(p).toString().replace(File.separatorChar, '/');
+	}
+}
@@ -1,30 +1,92 @@
 package linanqiu;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
- * Performs a batch of search-replace based on regexes.
+ * Performs a batch of search-replace based on regexes. Each rule is a
+ * triple made of a regex the filename must match, a pattern and its
+ * replacement. Depending on {@link #useRegex(boolean)}, the pattern is a
+ * regular expression or a literal string. The replacement is inserted as
+ * is, unless {@link #useGroups(boolean)} lets it refer to the groups of
+ * the pattern.
+ * <p>
+ * Rules are compiled as soon as they are loaded; the rules that do not
+ * compile are left out and listed by {@link #getErrors()}. The filename regexes are evaluated once for
+ * each file, giving the subset of rules that apply to it; the literal
+ * rules of this subset are then applied in a single scan of the file by a
+ * {@link LatexHackChain}.
  */
-public class RegexReplace implements LatexHack 
+public class RegexReplace implements RuleBasedHack, FingerprintedHack
 {
 	protected List<String[]> m_replacements;
-	
+
 	protected boolean m_useRegex = true;
-	
+
+	/**
+	 * Whether the replacements of regex rules may refer to groups
+	 */
+	protected boolean m_useGroups = false;
+
+	/**
+	 * The compiled rules, in the same order as {@link #m_replacements}, or
+	 * {@code null} if they have not been compiled yet
+	 */
+	protected List<Replacement> m_rules = null;
+
+	/**
+	 * A description of each rule that does not compile
+	 */
+	protected List<String> m_errors;
+
+	/**
+	 * The filename regexes, compiled once for each distinct regex; a regex
+	 * that does not compile is mapped to {@code null}
+	 */
+	protected Map<String,Pattern> m_selectors;
+
+	/**
+	 * The rules that apply to each file seen so far
+	 */
+	protected Map<String,List<Replacement>> m_subsets;
+
+	/**
+	 * Applies the rules when this hack is called on its own
+	 */
+	protected LatexHackChain m_chain;
+
 	public RegexReplace(List<String[]> replacements)
 	{
 		super();
 		m_replacements = replacements;
+		init();
 	}
-	
+
 	public void useRegex(boolean b)
 	{
 		m_useRegex = b;
+		init();
 	}
-	
+
+	/**
+	 * Sets whether the replacements of regex rules may refer to the groups
+	 * of their pattern, as with {@link String#replaceAll(String, String)}.
+	 * If not, which is the default, replacements are inserted as is.
+	 * @param b true to let replacements refer to groups
+	 */
+	public void useGroups(boolean b)
+	{
+		m_useGroups = b;
+		init();
+	}
+
 	public RegexReplace(Scanner scanner)
 	{
 		super();
@@ -49,24 +111,185 @@ public class RegexReplace implements LatexHack
 			}
 			line_cnt++;
 		}
+		init();
 	}
 
-	@Override
-	public String hack(String filename, String contents)
+	/**
+	 * Compiles the rules again
+	 */
+	protected synchronized void init()
 	{
+		m_rules = null;
+		m_selectors = new HashMap<String,Pattern>();
+		m_subsets = new HashMap<String,List<Replacement>>();
+		m_chain = new LatexHackChain(Collections.<LatexHack>emptyList());
+		compile();
+	}
+
+	/**
+	 * Compiles the rules, if this has not been done already. A rule whose
+	 * filename regex or pattern does not compile is replaced by
+	 * {@code null} and described in {@link #m_errors}.
+	 */
+	protected synchronized void compile()
+	{
+		if (m_rules != null)
+		{
+			return;
+		}
+		m_rules = new ArrayList<Replacement>(m_replacements.size());
+		m_errors = new ArrayList<String>();
+		int rule_cnt = 0;
 		for (String[] entry : m_replacements)
 		{
-			if (!filename.matches(entry[0]))
+			rule_cnt++;
+			if (!m_selectors.containsKey(entry[0]))
+			{
+				try
+				{
+					m_selectors.put(entry[0], Pattern.compile(entry[0]));
+				}
+				catch (PatternSyntaxException e)
+				{
+					m_selectors.put(entry[0], null);
+				}
+			}
+			if (m_selectors.get(entry[0]) == null)
+			{
+				m_errors.add("Rule " + rule_cnt + ": invalid filename regex " + entry[0]);
+				m_rules.add(null);
 				continue;
-			if (m_useRegex)
+			}
+			try
 			{
-				contents = contents.replaceAll(Pattern.quote(entry[1]), Pattern.quote(entry[2]));
+				if (m_useRegex)
+				{
+					m_rules.add(Replacement.fromRegex(entry[1], entry[2], m_useGroups));
+				}
+				else
+				{
+					m_rules.add(new Replacement(entry[1], entry[2]));
+				}
 			}
-			else
+			catch (PatternSyntaxException e)
 			{
-				contents = contents.replace(entry[1], entry[2]);
+				m_errors.add("Rule " + rule_cnt + " for files " + entry[0] + ": invalid pattern " + entry[1] + " (" + e.getDescription() + ")");
+				m_rules.add(null);
 			}
 		}
-		return contents;
+	}
+
+	/**
+	 * Gets the rules that do not compile
+	 * @return A description of each of these rules, with its number, its
+	 * filename regex and its pattern
+	 */
+	public synchronized List<String> getErrors()
+	{
+		compile();
+		return Collections.unmodifiableList(m_errors);
+	}
+
+	/**
+	 * Gets the rules that apply to a file. Each distinct filename regex is
+	 * only evaluated once per file.
+	 * @param filename The name of the file
+	 * @return The rules, in order
+	 */
+	protected synchronized List<Replacement> getRules(String filename)
+	{
+		compile();
+		List<Replacement> subset = m_subsets.get(filename);
+		if (subset != null)
+		{
+			return subset;
+		}
+		subset = new ArrayList<Replacement>();
+		Map<String,Boolean> selected = new HashMap<String,Boolean>();
+		for (int i = 0; i < m_rules.size(); i++)
+		{
+			if (m_rules.get(i) == null)
+			{
+				continue;
+			}
+			String selector = m_replacements.get(i)[0];
+			Boolean matches = selected.get(selector);
+			if (matches == null)
+			{
+				matches = m_selectors.get(selector).matcher(filename).matches();
+				selected.put(selector, matches);
+			}
+			if (matches)
+			{
+				subset.add(m_rules.get(i));
+			}
+		}
+		m_subsets.put(filename, subset);
+		return subset;
+	}
+
+	/**
+	 * Gets the rules that have never matched in any of the files processed
+	 * so far
+	 * @return The filename regex, pattern and replacement of each of these
+	 * rules
+	 */
+	public synchronized List<String[]> getUnmatched()
+	{
+		compile();
+		List<String[]> unmatched = new ArrayList<String[]>();
+		for (int i = 0; i < m_rules.size(); i++)
+		{
+			if (m_rules.get(i) != null && m_rules.get(i).getHits() == 0)
+			{
+				unmatched.add(m_replacements.get(i));
+			}
+		}
+		return unmatched;
+	}
+
+	/**
+	 * Gets the number of rules
+	 * @return The number of rules
+	 */
+	public int size()
+	{
+		return m_replacements.size();
+	}
+
+	@Override
+	public String getFingerprint(String filename)
+	{
+		List<Replacement> rules = getRules(filename);
+		if (rules.isEmpty())
+		{
+			return "";
+		}
+		StringBuilder out = new StringBuilder();
+		out.append(m_useRegex ? (m_useGroups ? "regex groups" : "regex quoted") : "literal").append("\n");
+		for (Replacement r : rules)
+		{
+			out.append(r.getFind()).append("\t").append(r.getReplace()).append("\n");
+		}
+		return out.toString();
+	}
+
+	@Override
+	public List<Replacement> getReplacements(String filename)
+	{
+		return getRules(filename);
+	}
+
+	@Override
+	public boolean isFileSpecific()
+	{
+		// Files that match the same filename regexes share the same subset
+		return false;
+	}
+
+	@Override
+	public String hack(String filename, String contents)
+	{
+		return m_chain.applyRules(getRules(filename), contents);
 	}
 }
@@ -0,0 +1,207 @@
+package linanqiu;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A search-and-replace rule. A literal rule replaces every occurrence of a
+ * string by another one, as {@link String#replace(CharSequence, CharSequence)}
+ * does; a regex rule behaves like {@link String#replaceAll(String, String)}.
+ * The replacement of a regex rule is taken as is, unless the rule is
+ * created with group references enabled. The rule also counts how many
+ * times it has matched.
+ */
+public class Replacement
+{
+	/**
+	 * The characters that have a special meaning in a regular expression
+	 */
+	protected static final String s_regexChars = "\\^$.|?*+()[]{}";
+
+	/**
+	 * The string to look for
+	 */
+	protected final String m_find;
+
+	/**
+	 * The string it is replaced with
+	 */
+	protected final String m_replace;
+
+	/**
+	 * The compiled pattern of a regex rule, or {@code null} for a literal
+	 * rule
+	 */
+	protected final Pattern m_pattern;
+
+	/**
+	 * The replacement passed to the matcher of a regex rule, where
+	 * {@code $} and {@code \} are escaped unless the rule may refer to
+	 * groups
+	 */
+	protected final String m_matcherReplace;
+
+	/**
+	 * The number of times the rule has matched
+	 */
+	protected final AtomicInteger m_hits = new AtomicInteger();
+
+	/**
+	 * Creates a new literal replacement
+	 * @param find The string to look for
+	 * @param replace The string it is replaced with
+	 */
+	public Replacement(String find, String replace)
+	{
+		this(find, replace, false);
+	}
+
+	/**
+	 * Creates a new replacement
+	 * @param find The string or the regular expression to look for
+	 * @param replace The string it is replaced with. For a regex rule, it
+	 * may refer to the groups of the expression.
+	 * @param regex Whether the rule is a regex rule
+	 * @throws PatternSyntaxException If the rule is a regex rule and the
+	 * expression is not valid
+	 */
+	public Replacement(String find, String replace, boolean regex)
+	{
+		this(find, replace, regex, regex);
+	}
+
+	/**
+	 * Creates a new replacement
+	 * @param find The string or the regular expression to look for
+	 * @param replace The string it is replaced with
+	 * @param regex Whether the rule is a regex rule
+	 * @param groups Whether the replacement of a regex rule may refer to the
+	 * groups of the expression; if not, it is inserted as is
+	 * @throws PatternSyntaxException If the rule is a regex rule and the
+	 * expression is not valid
+	 */
+	public Replacement(String find, String replace, boolean regex, boolean groups)
+	{
+		super();
+		m_find = find;
+		m_replace = replace;
+		m_pattern = regex ? Pattern.compile(find) : null;
+		m_matcherReplace = groups ? replace : Matcher.quoteReplacement(replace);
+	}
+
+	/**
+	 * Creates a replacement from a regular expression. When the expression
+	 * has no special characters, and the replacement does not refer to
+	 * groups, the rule is made literal, so that it can be fused with other
+	 * literal rules.
+	 * @param find The regular expression to look for
+	 * @param replace The string it is replaced with
+	 * @param groups Whether the replacement may refer to the groups of the
+	 * expression, as in {@link String#replaceAll(String, String)}; if not,
+	 * it is inserted as is
+	 * @return The replacement
+	 * @throws PatternSyntaxException If the expression is not valid
+	 */
+	public static Replacement fromRegex(String find, String replace, boolean groups)
+	{
+		boolean regex = groups && (replace.contains("$") || replace.contains("\\"));
+		for (int i = 0; !regex && i < find.length(); i++)
+		{
+			regex = s_regexChars.indexOf(find.charAt(i)) >= 0;
+		}
+		return new Replacement(find, replace, regex, groups);
+	}
+
+	/**
+	 * Gets the string to look for
+	 * @return The string
+	 */
+	public String getFind()
+	{
+		return m_find;
+	}
+
+	/**
+	 * Gets the string it is replaced with
+	 * @return The string
+	 */
+	public String getReplace()
+	{
+		return m_replace;
+	}
+
+	/**
+	 * Checks whether this rule is literal
+	 * @return true if the rule is literal, false if it is a regex rule
+	 */
+	public boolean isLiteral()
+	{
+		return m_pattern == null;
+	}
+
+	/**
+	 * Applies this rule alone to a string
+	 * @param s The string
+	 * @return The string with the replacement applied
+	 */
+	public String apply(String s)
+	{
+		if (m_pattern == null)
+		{
+			if (!m_find.isEmpty() && s.contains(m_find))
+			{
+				hit();
+			}
+			return s.replace(m_find, m_replace);
+		}
+		Matcher mat = m_pattern.matcher(s);
+		if (!mat.find())
+		{
+			return s;
+		}
+		hit();
+		return mat.replaceAll(m_matcherReplace);
+	}
+
+	/**
+	 * Records that the rule has matched
+	 */
+	public void hit()
+	{
+		m_hits.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of times the rule has matched
+	 * @return The number of times
+	 */
+	public int getHits()
+	{
+		return m_hits.get();
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof Replacement))
+		{
+			return false;
+		}
+		Replacement r = (Replacement) o;
+		return m_find.equals(r.m_find) && m_matcherReplace.equals(r.m_matcherReplace) && isLiteral() == r.isLiteral();
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return m_find.hashCode() * 31 + m_matcherReplace.hashCode() + (isLiteral() ? 0 : 1);
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_find + " -> " + m_replace;
+	}
+}
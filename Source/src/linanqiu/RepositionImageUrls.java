@@ -1,11 +1,13 @@
 package linanqiu;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
  * Makes all image links that contain paths links with only the filename
  */
-public class RepositionImageUrls implements LatexHack 
+public class RepositionImageUrls implements RuleBasedHack, FingerprintedHack
 {
 	protected final String m_outDirectory;
 	
@@ -18,6 +20,32 @@ public class RepositionImageUrls implements LatexHack
 		m_outPrefix = out_prefix;
 	}
 
+	@Override
+	public String getFingerprint(String filename)
+	{
+		return "prefix " + m_outPrefix;
+	}
+
+	@Override
+	public List<Replacement> getReplacements(String filename)
+	{
+		String prefix = filename.substring(m_outDirectory.length(), filename.lastIndexOf("/"));
+		if (prefix.contains("$") || prefix.contains("\\"))
+		{
+			// These characters have a special meaning in the replacement of replaceAll
+			return null;
+		}
+		List<Replacement> rules = new ArrayList<Replacement>(1);
+		rules.add(new Replacement("\\includegraphics{", "\\includegraphics{" + prefix + "/"));
+		return rules;
+	}
+
+	@Override
+	public boolean isFileSpecific()
+	{
+		return true;
+	}
+
 	@Override
 	public String hack(String filename, String contents)
 	{
@@ -0,0 +1,30 @@
+package linanqiu;
+
+import java.util.List;
+
+/**
+ * A LaTeX hack whose effect on a file can be described as a list of
+ * literal replacements. This allows the replacements of several hacks to
+ * be applied in a single pass over the file.
+ */
+public interface RuleBasedHack extends LatexHack
+{
+	/**
+	 * Gets the replacements this hack makes in a file. Applying them in
+	 * order, each one to the whole file, must give the same result as
+	 * {@link #hack(String, String)}.
+	 * @param filename The name of the file
+	 * @return The replacements, or {@code null} if the effect of the hack
+	 * on this file cannot be described that way
+	 */
+	public List<Replacement> getReplacements(String filename);
+
+	/**
+	 * Tells whether the replacements of this hack are specific to each file
+	 * or folder. Such replacements are applied in a pass of their own,
+	 * whose compiled form is not kept, so that the replacements of the other
+	 * hacks can be compiled once and shared by all the files.
+	 * @return true if the replacements depend on the file
+	 */
+	public boolean isFileSpecific();
+}
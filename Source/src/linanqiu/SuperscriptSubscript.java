@@ -0,0 +1,21 @@
+package linanqiu;
+
+/**
+ * Gitbook and pandoc handles superscripts and subscripts differently (this
+ * is mainly for my own project). While Gitbook demands <sub>lorem</sub> as
+ * subscripts, Pandoc takes only ~lorem~. Hence, we replace accordingly.
+ * Same for superscript.
+ */
+public class SuperscriptSubscript extends MarkdownTokenizer 
+{
+	public static final SuperscriptSubscript instance = new SuperscriptSubscript();
+	
+	private SuperscriptSubscript()
+	{
+		super();
+		add(new LiteralConstruct("<sub>", "~"));
+		add(new LiteralConstruct("</sub>", "~"));
+		add(new LiteralConstruct("<sup>", "^"));
+		add(new LiteralConstruct("</sup>", "^"));
+	}
+}
@@ -0,0 +1,162 @@
+package linanqiu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how {@link Book} reads the structure of a book from its summary.
+ */
+public class BookTest
+{
+	@Test
+	public void testSubchapters()
+	{
+		// The entries that point to a "readme" file are chapters
+		Book book = read("# Summary\n\n* [Part 1](part1/README.md)\n    * [Intro](part1/intro.md)\n* [Part 2](part2/Readme.md)\n* [Notes](notes.md)\n");
+		assertFalse(book.getChapter("part1/README.md").isSubchapter());
+		assertTrue(book.getChapter("part1/intro.md").isSubchapter());
+		assertFalse(book.getChapter("part2/Readme.md").isSubchapter());
+		assertTrue(book.getChapter("notes.md").isSubchapter());
+		assertEquals(4, book.size());
+	}
+
+	@Test
+	public void testNesting()
+	{
+		Book book = read("* [A](a/README.md)\n  * [B](a/b.md)\n    - [C](a/c.md)\n  * [D](a/d.md)\n\t* [E](a/e.md)\n* [F](f.md)\n");
+		List<Book.Chapter> roots = book.getRoots();
+		assertEquals(2, roots.size());
+		Book.Chapter a = roots.get(0);
+		assertEquals("A", a.getTitle());
+		assertEquals(2, a.getChildren().size());
+		assertEquals("a/c.md", a.getChildren().get(0).getChildren().get(0).getPath());
+		assertEquals(2, book.getChapter("a/c.md").getDepth());
+		// A tab goes to the next multiple of four columns, deeper than D
+		assertEquals(book.getChapter("a/d.md"), book.getChapter("a/e.md").getParent());
+		assertNull(book.getChapter("f.md").getParent());
+		// The chapters are in the order of the summary
+		StringBuilder order = new StringBuilder();
+		for (Book.Chapter c : book.getChapters())
+		{
+			order.append(c.getTitle());
+		}
+		assertEquals("ABCDEF", order.toString());
+	}
+
+	@Test
+	public void testSectionItems()
+	{
+		// An item that is not a file of the book does not hide its children
+		Book book = read("* [A](a/README.md)\n    * [Website](http://example.com)\n        * [B](a/b.md)\n");
+		assertEquals(2, book.size());
+		assertEquals(book.getChapter("a/README.md"), book.getChapter("a/b.md").getParent());
+	}
+
+	@Test
+	public void testPaths()
+	{
+		Book book = read("* [A](/a/README.md)\n* [B](./a/../b.md \"Title\")\n* [C](<c d.md>)\n* [A again](a/README.md)\n");
+		assertEquals(3, book.size());
+		assertEquals("a/README.md", book.getRoots().get(0).getPath());
+		assertEquals("b.md", book.getRoots().get(1).getPath());
+		assertEquals("c d.md", book.getRoots().get(2).getPath());
+	}
+
+	@Test
+	public void testAnchors()
+	{
+		Book book = read("* [A](a.md)\n* [Setup](a.md#setup)\n* [B](b.md#usage)\n* [Top](#top)\n");
+		// An anchor in a chapter already listed adds no chapter
+		assertEquals(2, book.size());
+		assertEquals("", book.getChapter("a.md").getAnchor());
+		assertEquals("usage", book.getChapter("b.md").getAnchor());
+	}
+
+	@Test
+	public void testMissingFiles() throws IOException
+	{
+		File folder = Files.createTempDirectory("book").toFile();
+		try
+		{
+			write(new File(folder, "a.md"), "# A\n".getBytes(StandardCharsets.UTF_8));
+			Book book = read("* [A](a.md)\n* [B](b.md)\n");
+			assertFalse(book.getChapter("a.md").exists());
+			book.stat(folder);
+			assertTrue(book.getChapter("a.md").exists());
+			assertEquals(4, book.getChapter("a.md").getSize());
+			assertFalse(book.getChapter("b.md").exists());
+		}
+		finally
+		{
+			new File(folder, "a.md").delete();
+			folder.delete();
+		}
+	}
+
+	@Test
+	public void testInvalidUtf8() throws IOException
+	{
+		File summary = File.createTempFile("SUMMARY", ".md");
+		try
+		{
+			write(summary, new byte[] {'*', ' ', '[', 'C', 'a', 'f', (byte) 0xE9, ']', '(', 'a', '.', 'm', 'd', ')', '\n',
+					'*', ' ', '[', 'B', ']', '(', 'b', '.', 'm', 'd', ')', '\n'});
+			// Malformed bytes are replaced, and the following lines are read
+			Book book = Book.read(summary);
+			assertEquals(2, book.size());
+			assertEquals("Caf\ufffd", book.getChapter("a.md").getTitle());
+		}
+		finally
+		{
+			summary.delete();
+		}
+	}
+
+	/**
+	 * Reads a book from the text of its summary
+	 * @param summary The summary
+	 * @return The book
+	 */
+	protected static Book read(String summary)
+	{
+		try
+		{
+			return Book.read(new StringReader(summary));
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes bytes to a file
+	 * @param file The file
+	 * @param contents The bytes
+	 * @throws IOException If the file cannot be written
+	 */
+	protected static void write(File file, byte[] contents) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(contents);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package linanqiu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link FastPathConverter} produces the same LaTeX as pandoc.
+ * The fixtures in {@code linanqiu/fastpath} are pairs of a Markdown
+ * document and of the output of pandoc 3.1 on it, with
+ * {@code --wrap=preserve}.
+ */
+public class FastPathConverterTest
+{
+	/**
+	 * Documents that use something the converter does not handle
+	 */
+	protected static final String[] s_unsupported = new String[] {
+			"",
+			"| a | b |\n|---|---|\n| 1 | 2 |\n",
+			"Text with a note.[^1]\n\n[^1]: The note.\n",
+			"Quotes \"like this\".\n",
+			"An en dash -- here.\n",
+			"See e.g. the manual.\n",
+			"Price: $5.\n",
+			"Some <b>HTML</b>.\n",
+			"Escaped \\* star.\n",
+			"Some `a_b` code.\n",
+			"```\ncode\n```\n",
+			"![Figure](img/figure.png)\n",
+			"See [a link](https://example.com/a_b).\n",
+			"# Intro\n\nText.\n\n# Intro\n",
+			"# Title: with a colon\n",
+			"Title\n=====\n",
+			"> A quote.\n",
+			"1. First\n2. Second\n",
+			"* Alpha\n\n* Beta\n",
+			"* Alpha\n  * Nested\n",
+			"A tab\there.\n",
+			"Windows\r\nline endings.\n",
+	};
+
+	@Test
+	public void testConstructs() throws IOException
+	{
+		FastPathConverter converter = new FastPathConverter();
+		for (String construct : FastPathConverter.s_probes.keySet())
+		{
+			assertEquals(read(construct + ".tex"), converter.convert(read(construct + ".md")), construct);
+		}
+	}
+
+	@Test
+	public void testProbes() throws IOException
+	{
+		// The fixtures must cover the probes used for calibration
+		for (Map.Entry<String,String> probe : FastPathConverter.s_probes.entrySet())
+		{
+			assertEquals(probe.getValue(), read(probe.getKey() + ".md"), probe.getKey());
+		}
+	}
+
+	@Test
+	public void testChapter() throws IOException
+	{
+		FastPathConverter converter = new FastPathConverter();
+		assertEquals(read("chapter.tex"), converter.convert(read("chapter.md")));
+	}
+
+	@Test
+	public void testUnsupported()
+	{
+		FastPathConverter converter = new FastPathConverter();
+		for (String markdown : s_unsupported)
+		{
+			assertNull(converter.convert(markdown), markdown);
+		}
+	}
+
+	@Test
+	public void testCalibrate() throws IOException
+	{
+		File recorded = File.createTempFile("probes", ".tex");
+		try
+		{
+			Map<String,String> outputs = new LinkedHashMap<String,String>();
+			for (String construct : FastPathConverter.s_probes.keySet())
+			{
+				outputs.put(construct, read(construct + ".tex"));
+			}
+			// Since all the outputs are recorded, pandoc is not called
+			String[] command = new String[] {"pandoc-not-installed"};
+			FastPathConverter.saveRecorded(recorded, outputs);
+			FastPathConverter converter = new FastPathConverter();
+			converter.calibrate(command, recorded);
+			assertEquals(FastPathConverter.s_probes.keySet(), converter.getEnabled());
+
+			// A construct that pandoc converts differently is disabled
+			outputs.put(FastPathConverter.CODE, "Call \\passthrough{\\texttt{foo(x)}} and \\passthrough{\\texttt{bar}}.\n");
+			FastPathConverter.saveRecorded(recorded, outputs);
+			converter = new FastPathConverter();
+			converter.calibrate(command, recorded);
+			assertFalse(converter.getEnabled().contains(FastPathConverter.CODE));
+			assertNull(converter.convert(read("code.md")));
+			assertNotNull(converter.convert(read("emphasis.md")));
+
+			// Without paragraphs, nothing is converted
+			outputs.put(FastPathConverter.PARAGRAPHS, "");
+			FastPathConverter.saveRecorded(recorded, outputs);
+			converter = new FastPathConverter();
+			converter.calibrate(command, recorded);
+			assertTrue(converter.getEnabled().isEmpty());
+			assertNull(converter.convert(read("emphasis.md")));
+		}
+		finally
+		{
+			Files.deleteIfExists(recorded.toPath());
+		}
+	}
+
+	/**
+	 * Reads a fixture
+	 * @param name The name of the fixture
+	 * @return Its contents
+	 * @throws IOException If the fixture cannot be read
+	 */
+	protected static String read(String name) throws IOException
+	{
+		InputStream in = FastPathConverterTest.class.getResourceAsStream("fastpath/" + name);
+		assertNotNull(in, name);
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int len;
+			while ((len = in.read(buffer)) >= 0)
+			{
+				out.write(buffer, 0, len);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package linanqiu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that fusing replacements with {@link LatexHackChain} and
+ * {@link FusedReplacements} gives the same text as applying them one after
+ * the other. Rules and texts are drawn from a small alphabet, so that
+ * patterns often overlap each other and straddle the output of previous
+ * rules.
+ */
+public class FusedReplacementsTest
+{
+	/**
+	 * The characters of random patterns, replacements and texts
+	 */
+	protected static final String s_alphabet = "ab{\\";
+
+	/**
+	 * The pieces random LaTeX texts are made of
+	 */
+	protected static final String[] s_latexFragments = new String[] {
+			"\\section{", "\\subsection{", "\\subsubsection{", "\\chapter{", "section{", "subsection{", "sub", "\\", "{", "}", "Title", " ", "\n"
+	};
+
+	@Test
+	public void testExamples()
+	{
+		// The second pattern straddles the output of the first one
+		check("xaby", new Replacement("ab", "c"), new Replacement("cy", "d"));
+		// The second rule rewrites the output of the first one
+		check("abab", new Replacement("a", "bb"), new Replacement("bb", "c"));
+		// Overlapping patterns: the first rule wins
+		check("abc", new Replacement("ab", "x"), new Replacement("bc", "y"));
+		// Removing text brings together the halves of a pattern
+		check("aXb", new Replacement("X", ""), new Replacement("ab", "c"));
+		// A regex rule between literal rules
+		check("a1b22", new Replacement("b", "c"), Replacement.fromRegex("[0-9]+", "#", false), new Replacement("#", "n"));
+	}
+
+	@Test
+	public void testRandom()
+	{
+		Random random = new Random(42);
+		for (int i = 0; i < 50000; i++)
+		{
+			int num_rules = 1 + random.nextInt(6);
+			Replacement[] rules = new Replacement[num_rules];
+			for (int j = 0; j < num_rules; j++)
+			{
+				rules[j] = new Replacement(randomString(random, 1 + random.nextInt(3)), randomString(random, random.nextInt(4)));
+			}
+			check(randomString(random, random.nextInt(30)), rules);
+		}
+	}
+
+	@Test
+	public void testSubchapterShift()
+	{
+		// The shift of sub-chapter headings is fused with PromoteTitles
+		List<LatexHack> hacks = new ArrayList<LatexHack>();
+		hacks.add(PromoteTitles.instance);
+		LatexHackChain chain = new LatexHackChain(hacks);
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++)
+		{
+			StringBuilder text = new StringBuilder();
+			int length = random.nextInt(12);
+			for (int j = 0; j < length; j++)
+			{
+				text.append(s_latexFragments[random.nextInt(s_latexFragments.length)]);
+			}
+			String s = text.toString();
+			String expected = PromoteTitles.instance.hack("a.tex", s).replace("section{", "subsection{");
+			assertEquals(expected, chain.apply("a.tex", s, GitbookToPandoc.s_shift), s);
+			assertEquals(PromoteTitles.instance.hack("a.tex", s), chain.apply("a.tex", s), s);
+		}
+	}
+
+	@Test
+	public void testFileSpecific()
+	{
+		// The rules of each folder are applied in their own pass, and do not
+		// make the shared rules compiled again
+		List<LatexHack> hacks = new ArrayList<LatexHack>();
+		hacks.add(PromoteTitles.instance);
+		hacks.add(FlattenImageLinks.instance);
+		hacks.add(new RepositionImageUrls("/out/", ""));
+		List<String[]> rules = new ArrayList<String[]>();
+		rules.add(new String[] {".*", "GPGP\\index", "\\index"});
+		RegexReplace rr = new RegexReplace(rules);
+		rr.useRegex(false);
+		hacks.add(rr);
+		LatexHackChain chain = new LatexHackChain(hacks);
+		String text = "\\section{A}\n\\includegraphics{../img.png} and GPGP\\index{a}\n\\subsection{B}\n";
+		for (int i = 0; i < 100; i++)
+		{
+			String filename = "/out/folder" + i + "/chapter.tex";
+			String expected = text;
+			for (LatexHack hack : hacks)
+			{
+				expected = hack.hack(filename, expected);
+			}
+			assertEquals(expected.replace("section{", "subsection{"), chain.apply(filename, text, GitbookToPandoc.s_shift));
+		}
+		assertEquals(2, chain.m_compiled.size());
+	}
+
+	/**
+	 * Checks that a chain gives the same result as applying some rules in
+	 * sequence
+	 * @param text The text to apply the rules to
+	 * @param rules The rules
+	 */
+	protected static void check(String text, Replacement ... rules)
+	{
+		String expected = text;
+		List<Replacement> list = new ArrayList<Replacement>();
+		for (Replacement r : rules)
+		{
+			expected = r.isLiteral() ? expected.replace(r.getFind(), r.getReplace()) : expected.replaceAll(r.getFind(), r.getReplace());
+			list.add(r);
+		}
+		LatexHackChain chain = new LatexHackChain(Collections.<LatexHack>emptyList());
+		assertEquals(expected, chain.apply("a.tex", text, list), list + " on " + text);
+	}
+
+	/**
+	 * Creates a random string over {@link #s_alphabet}
+	 * @param random The source of randomness
+	 * @param length The length of the string
+	 * @return The string
+	 */
+	protected static String randomString(Random random, int length)
+	{
+		StringBuilder out = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+		{
+			out.append(s_alphabet.charAt(random.nextInt(s_alphabet.length())));
+		}
+		return out.toString();
+	}
+}
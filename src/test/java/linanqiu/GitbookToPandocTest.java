@@ -0,0 +1,63 @@
+package linanqiu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how {@link GitbookToPandoc} decides which chapters can be sent to
+ * the same pandoc process.
+ */
+public class GitbookToPandocTest
+{
+	@Test
+	public void testLabels()
+	{
+		Set<String> labels = GitbookToPandoc.getLabels("# Introduction\n\nSee [Other Part], [the manual][man], [a link](http://x) and a note[^1].\n\n[Man]: http://manual\n[^1]: A note.\n");
+		assertTrue(labels.contains("^1"));
+		assertTrue(labels.contains("#introduction"));
+		assertTrue(labels.contains("[introduction"));
+		assertTrue(labels.contains("[man"));
+		assertTrue(labels.contains("[other part"));
+		assertFalse(labels.contains("[a link"));
+	}
+
+	@Test
+	public void testHeadings()
+	{
+		Set<String> labels = GitbookToPandoc.getLabels("Getting  Started\n================\n\n## 2. Setup {#setup .unnumbered}\n\nText.\n\n---\n");
+		assertTrue(labels.contains("#getting-started"));
+		assertTrue(labels.contains("#setup"));
+		assertTrue(labels.contains("[getting started"));
+		assertTrue(labels.contains("[2. setup"));
+		assertEquals(4, labels.size());
+	}
+
+	@Test
+	public void testCode()
+	{
+		// Brackets in code are not references
+		assertEquals(0, GitbookToPandoc.getLabels("Text with `a[i]`.\n\n```\nint[] a = b[0];\n# not a heading\n```\n").size());
+	}
+
+	@Test
+	public void testCollisions()
+	{
+		Set<String> a = GitbookToPandoc.getLabels("# Introduction\n\nText.\n");
+		// The same heading in two chapters
+		assertFalse(Collections.disjoint(a, GitbookToPandoc.getLabels("# Introduction\n\nOther text.\n")));
+		// An implicit reference to the heading of another chapter
+		assertFalse(Collections.disjoint(a, GitbookToPandoc.getLabels("# Usage\n\nSee [Introduction].\n")));
+		// A reference defined in another chapter
+		assertFalse(Collections.disjoint(GitbookToPandoc.getLabels("# Usage\n\nSee [the manual][man].\n"), GitbookToPandoc.getLabels("# Notes\n\n[man]: http://manual\n")));
+		// The same footnote label
+		assertFalse(Collections.disjoint(GitbookToPandoc.getLabels("A[^1].\n\n[^1]: Note.\n"), GitbookToPandoc.getLabels("B[^1].\n\n[^1]: Other note.\n")));
+		// Unrelated chapters
+		assertTrue(Collections.disjoint(a, GitbookToPandoc.getLabels("# Usage\n\nSee [the manual](http://manual).\n")));
+	}
+}
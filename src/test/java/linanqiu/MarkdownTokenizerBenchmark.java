@@ -0,0 +1,74 @@
+package linanqiu;
+
+/**
+ * Compares the time the Markdown tokenizer and the chain of regex
+ * replacements it replaces take on a large chapter. Run it with
+ * <tt>java linanqiu.MarkdownTokenizerBenchmark [size in MB] [runs]</tt>.
+ */
+public class MarkdownTokenizerBenchmark
+{
+	public static void main(String[] args)
+	{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		MarkdownTokenizer tokenizer = MarkdownTokenizerTest.createTokenizer();
+		String marked = createChapter(size * 1024 * 1024, true);
+		String plain = createChapter(size * 1024 * 1024, false);
+		if (!MarkdownTokenizerTest.applyRegexChain(marked).equals(tokenizer.hack("a.md", marked)))
+		{
+			System.err.println("The tokenizer and the regex chain give different outputs");
+			System.exit(1);
+		}
+		for (String name : new String[] {"with constructs", "without constructs"})
+		{
+			String text = name.startsWith("with ") ? marked : plain;
+			// Warm up the JVM
+			for (int i = 0; i < runs; i++)
+			{
+				MarkdownTokenizerTest.applyRegexChain(text);
+				tokenizer.hack("a.md", text);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < runs; i++)
+			{
+				MarkdownTokenizerTest.applyRegexChain(text);
+			}
+			long regex = (System.nanoTime() - start) / runs / 1000000;
+			start = System.nanoTime();
+			for (int i = 0; i < runs; i++)
+			{
+				tokenizer.hack("a.md", text);
+			}
+			long tokens = (System.nanoTime() - start) / runs / 1000000;
+			System.out.println(name + ": regex chain " + regex + " ms, tokenizer " + tokens + " ms");
+		}
+	}
+
+	/**
+	 * Creates a chapter
+	 * @param size The approximate size of the chapter, in characters
+	 * @param constructs Whether the lines have sub/sup tags and, for a
+	 * quarter of them, an index marker
+	 * @return The chapter
+	 */
+	protected static String createChapter(int size, boolean constructs)
+	{
+		StringBuilder out = new StringBuilder(size + 200);
+		int line = 0;
+		while (out.length() < size)
+		{
+			out.append("Line ").append(line).append(" of the chapter, with some text to fill it");
+			if (constructs)
+			{
+				out.append(": H<sub>2</sub>O and x<sup>2</sup>");
+				if (line % 4 == 0)
+				{
+					out.append(" and a <!--\\index{term ").append(line).append("}-->term<!--/i--> here");
+				}
+			}
+			out.append(".\n");
+			line++;
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,121 @@
+package linanqiu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the tokenizer registered for the Markdown constructs gives
+ * the same text as the chain of regex replacements it replaces:
+ * {@link SuperscriptSubscript}'s four <tt>replaceAll</tt> calls, followed
+ * by {@link IndexReplace}'s line-by-line replacement of the index markers.
+ */
+public class MarkdownTokenizerTest
+{
+	/**
+	 * The pattern the old {@link IndexReplace} looked for on each line
+	 */
+	protected static final Pattern s_indexPattern = Pattern.compile("<!--(\\\\index.*?)-->.*?<!--/i-->");
+
+	/**
+	 * The pieces random texts are made of: the constructs, parts of them and
+	 * plain text
+	 */
+	protected static final String[] s_fragments = new String[] {
+			"<sub>", "</sub>", "<sup>", "</sup>", "<!--\\index{", "<!--\\index", "}-->", "-->", "<!--/i-->", "<!--",
+			"<", "sub>", "/i", "\\index", "{a}", "word", " ", "\n", "\n", "\u00e9"
+	};
+
+	/**
+	 * Applies the chain of regex replacements the tokenizer replaces. The
+	 * markers of a line are replaced by a regex <tt>replaceAll</tt>; the
+	 * old code used <tt>String.replace</tt> on each match, which differs
+	 * only when a marker also occurs inside another one.
+	 * @param text The text, whose lines end with <tt>\n</tt>
+	 * @return The text with the replacements applied
+	 */
+	public static String applyRegexChain(String text)
+	{
+		text = text.replaceAll("<sub>", "~");
+		text = text.replaceAll("</sub>", "~");
+		text = text.replaceAll("<sup>", "^");
+		text = text.replaceAll("</sup>", "^");
+		if (!text.contains("<!--\\index"))
+		{
+			return text;
+		}
+		StringBuilder out = new StringBuilder();
+		for (String line : text.split("\n", -1))
+		{
+			Matcher mat = s_indexPattern.matcher(line);
+			StringBuffer sb = new StringBuffer();
+			while (mat.find())
+			{
+				mat.appendReplacement(sb, Matcher.quoteReplacement("GPGP" + mat.group(1)));
+			}
+			mat.appendTail(sb);
+			out.append(sb).append("\n");
+		}
+		// split() gives an empty last line after the final newline
+		out.setLength(out.length() - 1);
+		return out.toString();
+	}
+
+	/**
+	 * Creates the tokenizer as {@link GitbookToPandoc} registers it
+	 * @return The tokenizer
+	 */
+	public static MarkdownTokenizer createTokenizer()
+	{
+		return new MarkdownTokenizer().addAll(SuperscriptSubscript.instance).addAll(IndexReplace.instance);
+	}
+
+	@Test
+	public void testExamples()
+	{
+		MarkdownTokenizer tokenizer = createTokenizer();
+		String[] examples = new String[] {
+				"H<sub>2</sub>O and x<sup>2</sup>\n",
+				"A <!--\\index{word}-->word<!--/i--> in the text.\n",
+				"An entry <!--\\index{H<sub>2</sub>O}-->water<!--/i--> with a subscript.\n",
+				"Two <!--\\index{a}-->a<!--/i--> and <!--\\index{b}-->b<!--/i--> markers.\n",
+				"Unclosed <!--\\index{a}-->a\n<!--/i--> marker.\n",
+				"<!--\\index{a}--><!--/i-->\n",
+		};
+		for (String text : examples)
+		{
+			assertEquals(applyRegexChain(text), tokenizer.hack("a.md", text), text);
+		}
+	}
+
+	@Test
+	public void testNoConstruct()
+	{
+		String text = "Plain text, with <b>tags</b> and <!-- comments -->.\n";
+		assertTrue(createTokenizer().hack("a.md", text) == text);
+	}
+
+	@Test
+	public void testRandom()
+	{
+		MarkdownTokenizer tokenizer = createTokenizer();
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++)
+		{
+			StringBuilder text = new StringBuilder();
+			int length = random.nextInt(30);
+			for (int j = 0; j < length; j++)
+			{
+				text.append(s_fragments[random.nextInt(s_fragments.length)]);
+			}
+			text.append("\n");
+			String s = text.toString();
+			assertEquals(applyRegexChain(s), tokenizer.hack("a.md", s), s);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package linanqiu;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link PreambleBuilder} finds the features of a document,
+ * and that its sample document has the same features.
+ */
+public class PreambleBuilderTest
+{
+	@Test
+	public void testInlineHighlighting()
+	{
+		assertTrue(PreambleBuilder.scanFeatures("Call `foo()`{.java} here.\n").contains(PreambleBuilder.INLINE_HIGHLIGHTING + "java"));
+		assertTrue(PreambleBuilder.scanFeatures("Call `foo()`{#id .Python}.\n").contains(PreambleBuilder.INLINE_HIGHLIGHTING + "python"));
+		assertEquals(0, PreambleBuilder.scanFeatures("Call `foo()` and {braces}.\n").size());
+	}
+
+	@Test
+	public void testVerbatimInNote()
+	{
+		Set<String> features = PreambleBuilder.scanFeatures("Text[^1].\n\n[^1]: A note.\n\n    ```java\n    code\n    ```\n");
+		assertTrue(features.contains(PreambleBuilder.VERBATIM_IN_NOTE));
+		assertTrue(features.contains(PreambleBuilder.HIGHLIGHTING + "java"));
+		assertTrue(PreambleBuilder.scanFeatures("Text[^1].\n\n[^1]: A note.\n\n        code\n").contains(PreambleBuilder.VERBATIM_IN_NOTE));
+		// A code block after the note is not in the note
+		features = PreambleBuilder.scanFeatures("Text[^1].\n\n[^1]: A note.\n\nText.\n\n```\ncode\n```\n");
+		assertTrue(features.contains(PreambleBuilder.FOOTNOTES));
+		assertFalse(features.contains(PreambleBuilder.VERBATIM_IN_NOTE));
+	}
+
+	@Test
+	public void testSvg()
+	{
+		assertTrue(PreambleBuilder.scanFeatures("![A diagram](img/diagram.svg)\n").contains(PreambleBuilder.SVG));
+		assertTrue(PreambleBuilder.scanFeatures("![A diagram][d]\n\n[d]: img/diagram.SVG \"Title\"\n").contains(PreambleBuilder.SVG));
+		assertFalse(PreambleBuilder.scanFeatures("![A photo](img/photo.png)\n").contains(PreambleBuilder.SVG));
+		assertFalse(PreambleBuilder.scanFeatures("A [link](img/diagram.svg).\n").contains(PreambleBuilder.SVG));
+	}
+
+	@Test
+	public void testSample()
+	{
+		// The sample of a set of features has these features, and no other
+		String[] documents = new String[] {
+				"| A | B |\n|---|---|\n| 1 | 2 |\n",
+				"Text[^1].\n\n[^1]: A note.\n\n    ```\n    code\n    ```\n",
+				"~~Text~~ and H~2~O with ![A diagram](diagram.svg)\n",
+				"```java\ncode\n```\n\nCall `foo()`{.python}.\n",
+		};
+		for (String document : documents)
+		{
+			Set<String> features = PreambleBuilder.scanFeatures(document);
+			assertEquals(features, PreambleBuilder.scanFeatures(PreambleBuilder.getSample(features)), document);
+		}
+	}
+}